@@ -4,22 +4,66 @@
   Date: 23/03/25
 */
 
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BinaryOperator;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * AVLTreeDatabase is a self-balancing binary search tree that maintains
  * entries in a sorted order while keeping the tree balanced.
  *
+ * The inserts, rebalancing, bulk loads, order statistics and iteration are
+ * done by a KeyedAVLTree that orders the elements by their natural order.
+ * This class keeps the root and passes it in, so root, the comparison
+ * counters and the node methods work as they always have. Single and batch
+ * finds walk the nodes with String comparisons directly.
+ *
+ * The methods that work with terms treat the elements as entries, so they
+ * need dataType to be Entry. The casts that rely on this are kept in a few
+ * small accessors at the end of the class.
+ *
  * @param <dataType> The type of data stored in the tree, must be Comparable
  */
 public class AVLTreeDatabase<dataType extends Comparable<? super dataType>>
 {
     public String filePath;
     public BTNode<dataType> root;
-    public int searchComparisonCount = 0;
-    public int insertComparisonCount = 0;
+    public long searchComparisonCount = 0;
+    public long insertComparisonCount = 0;
+
+    private final KeyedAVLTree<dataType, dataType> tree = new KeyedAVLTree<>(d -> d, Comparator.naturalOrder());
+    private final BinaryOperator<dataType> merge = this::mergeDuplicate;
+
+    private DuplicatePolicy duplicatePolicy = DuplicatePolicy.KEEP_FIRST;
+    private boolean stringPooling = false;
+    private TermCache cache;
+    private ConfidenceIndex confidenceIndex;
+    private FuzzyIndex fuzzyIndex;
+    private TermFilter termFilter;
+    private TreeMetrics metrics;
+    private LineOffsetIndex lineIndex;
+    private KBTailFollower tail;
+    private long fileOffset;
+    private long logOffset;
+    private long unsnapshotted;
+    private WriteAheadLog log;
+    private String compactionPath;
+    private long compactionThreshold;
 
     /**
      * Constructs an AVLTreeDatabase with the specified file path.
@@ -40,12 +84,7 @@ public class AVLTreeDatabase<dataType extends Comparable<? super dataType>>
      */
     public BTNode<dataType> rotateLeft(BTNode<dataType> q)
     {
-        BTNode<dataType> p = q.right;
-        q.right = p.left;
-        p.left = q;
-        fixHeight(q);
-        fixHeight(p);
-        return p;
+        return tree.rotateLeft(q);
     }
 
     /**
@@ -56,49 +95,151 @@ public class AVLTreeDatabase<dataType extends Comparable<? super dataType>>
      */
     public BTNode<dataType> rotateRight(BTNode<dataType> p)
     {
-        BTNode<dataType> q = p.left;
-        p.left = q.right;
-        q.right = p;
-        fixHeight(p);
-        fixHeight(q);
-        return q;
+        return tree.rotateRight(p);
     }
 
     /**
-     * Inserts a new element into the AVL tree.
+     * Inserts a new element into the AVL tree. If a write-ahead log is
+     * attached, the element is logged first, and it is not inserted if it
+     * cannot be logged.
+     *
+     * Under a duplicate policy that merges, the tree stores a copy of the
+     * element, since merging changes the stored entry in place; the caller's
+     * entry is never changed by a later insert.
      *
      * @param d The element to insert
+     * @throws UncheckedIOException If the log cannot accept the element
      */
     public void insert(dataType d)
     {
+        dataType stored = d;
+        if (duplicatePolicy != DuplicatePolicy.KEEP_FIRST && d instanceof Entry entry)
+            stored = data(entry.copy());
+
+        if (log != null && stored instanceof Entry entry)
+        {
+            try
+            {
+                log.append(entry);
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+            unsnapshotted++;
+        }
+
+        apply(stored);
+
+        if (log != null && compactionPath != null && unsnapshotted >= compactionThreshold)
+            compactLog(compactionPath);
+    }
+
+    /**
+     * Inserts an element without logging it, keeping the cache and the
+     * secondary indexes up to date.
+     *
+     * @param d The element to insert
+     */
+    private void apply(dataType d)
+    {
+        long start = metrics == null ? 0 : System.nanoTime();
+        long comparisons = insertComparisonCount;
+
+        int before = size(root);
         root = insert(d, root);
+
+        if (size(root) != before && d instanceof Entry entry)
+        {
+            if (cache != null)
+                cache.invalidate(entry.term);
+            if (confidenceIndex != null)
+                confidenceIndex.add(entry);
+            if (fuzzyIndex != null)
+                fuzzyIndex.add(entry);
+            if (termFilter != null)
+            {
+                termFilter.add(entry.term);
+                if (termFilter.isFull())
+                    rebuildTermFilter(termFilter.resized(size() * 2));
+            }
+        }
+
+        if (metrics != null)
+        {
+            metrics.insertNanos.record(System.nanoTime() - start);
+            metrics.insertComparisons.record(insertComparisonCount - comparisons);
+        }
     }
 
     /**
-     * Recursive helper method to insert an element into the AVL tree.
+     * Inserts an element below the given node, applying the duplicate
+     * policy if its term is already there. The secondary indexes are not
+     * updated.
      *
      * @param d The element to insert
-     * @param node The current node in the recursion
+     * @param node The root of the subtree to insert into
      * @return The new root of the subtree after insertion and balancing
      */
     public BTNode<dataType> insert(dataType d, BTNode<dataType> node)
     {
-        if (node == null)
-            return new BTNode<dataType>(d);
+        long comparisons = tree.insertComparisonCount;
+        BTNode<dataType> result = tree.insert(d, node, duplicatePolicy == DuplicatePolicy.KEEP_FIRST ? null : merge);
+        insertComparisonCount += tree.insertComparisonCount - comparisons;
+        return result;
+    }
 
-        insertComparisonCount++;
-        if (d.compareTo(node.data) < 0)
-            node.left = insert(d, node.left);
-        else
-        {
-            insertComparisonCount++;
-            if (d.compareTo(node.data) > 0)
-                node.right = insert(d, node.right);
-            else
-                return node;
-        }
+    /**
+     * Applies the duplicate policy when an element's term is already in the
+     * tree, keeping the confidence index in step if the stored confidence
+     * changes. The existing entry is merged into in place, so it must be one
+     * the tree owns: a copy made by insert, or one read by a loader.
+     *
+     * @param existing The element already in the tree
+     * @param d The element being inserted
+     * @return The element to keep in the tree
+     */
+    private dataType mergeDuplicate(dataType existing, dataType d)
+    {
+        if (existing instanceof Entry entry && d instanceof Entry other
+                && entry.merge(other, duplicatePolicy) && confidenceIndex != null)
+            confidenceIndex.add(entry);
+        return existing;
+    }
 
-        return balance(node);
+    /**
+     * Sets what insert does when a term is already in the tree. The default
+     * is KEEP_FIRST. Entries inserted under KEEP_FIRST are stored as given,
+     * so set the policy before inserting anything that may later be merged
+     * into.
+     *
+     * @param policy The duplicate policy
+     */
+    public void setDuplicatePolicy(DuplicatePolicy policy)
+    {
+        duplicatePolicy = policy;
+    }
+
+    /**
+     * Returns what insert does when a term is already in the tree.
+     *
+     * @return The duplicate policy
+     */
+    public DuplicatePolicy getDuplicatePolicy()
+    {
+        return duplicatePolicy;
+    }
+
+    /**
+     * Sets whether file loads share repeated terms and statements, so that
+     * each distinct string is stored once. This saves heap when the file
+     * repeats itself, at some cost in load time. It is off by default.
+     *
+     * @param stringPooling true to pool strings during loads
+     */
+    public void setStringPooling(boolean stringPooling)
+    {
+        this.stringPooling = stringPooling;
     }
 
     /**
@@ -109,23 +250,7 @@ public class AVLTreeDatabase<dataType extends Comparable<? super dataType>>
      */
     public BTNode<dataType> balance(BTNode<dataType> node)
     {
-        fixHeight(node);
-
-        if (balanceFactor(node) == 2)
-        {
-            if (balanceFactor(node.right) < 0)
-                node.right = rotateRight(node.right);
-            return rotateLeft(node);
-        }
-
-        if (balanceFactor(node) == -2)
-        {
-            if (balanceFactor(node.left) > 0)
-                node.left = rotateLeft(node.left);
-            return rotateRight(node);
-        }
-
-        return node;
+        return tree.balance(node);
     }
 
     /**
@@ -136,7 +261,7 @@ public class AVLTreeDatabase<dataType extends Comparable<? super dataType>>
      */
     public int balanceFactor(BTNode<dataType> node)
     {
-        return height(node.right) - height(node.left);
+        return tree.balanceFactor(node);
     }
 
     /**
@@ -146,32 +271,76 @@ public class AVLTreeDatabase<dataType extends Comparable<? super dataType>>
      */
     public void fixHeight(BTNode<dataType> node)
     {
-        int hl = height(node.left);
-        int hr = height(node.right);
-        node.height = (hl > hr ? hl : hr) + 1;
+        tree.fixHeight(node);
+    }
+
+    /**
+     * Updates the subtree size of a node.
+     *
+     * @param node The node to update the size for
+     */
+    public void fixSize(BTNode<dataType> node)
+    {
+        tree.fixSize(node);
     }
 
+    /**
+     * Creates a string pool for one file load, if pooling is on.
+     *
+     * @return A new pool, or null if pooling is off
+     */
+    private StringPool newPool()
+    {
+        return stringPooling ? new StringPool() : null;
+    }
+
+    /**
+     * Reads the entries on lines start to end (1-based, inclusive) of the file
+     * and inserts them into the AVL tree. A sparse index of line offsets is
+     * kept between calls, so reading starts near line start instead of
+     * skipping every line before it. As in readFile, a last line without a
+     * newline is left out.
+     *
+     * @param start The first line to read
+     * @param end The last line to read
+     */
     public void readFileRange(int start, int end)
     {
-        try (BufferedReader br = new BufferedReader(new FileReader(filePath))) {
-            String line;
-            int count = 0;
-
-            while ((line = br.readLine()) != null && count < end) {
-                count++;
-                if (count >= start) {
-                    String[] parts = line.split("\t");
-                    if (parts.length >= 3) {
-                        String term = parts[0];
-                        String tree = parts[1];
-                        double confidence = Double.parseDouble(parts[2]);
-                        insert((dataType) new Entry(term, tree, confidence));
-                    }
-                }
-            }
-        } catch (IOException e) {
+        if (lineIndex == null)
+            lineIndex = new LineOffsetIndex();
+
+        long startTime = System.nanoTime();
+        int before = size();
+        try
+        {
+            KBFileReader.forEachEntry(filePath, lineIndex, newPool(), start, end, e -> apply(data(e)));
+        }
+        catch (IOException e)
+        {
             e.printStackTrace();
         }
+        recordLoad("readFileRange", before, startTime);
+    }
+
+    /**
+     * Returns the number of nodes in a subtree.
+     *
+     * @param node The root of the subtree
+     * @return The number of nodes, or 0 if the node is null
+     */
+    public int size(BTNode<dataType> node)
+    {
+        return tree.size(node);
+    }
+
+    /**
+     * Returns the number of entries in the tree.
+     *
+     * @return The number of entries
+     */
+    public int size()
+    {
+        return size(root);
     }
 
     /**
@@ -182,7 +351,52 @@ public class AVLTreeDatabase<dataType extends Comparable<? super dataType>>
      */
     public int height(BTNode<dataType> node)
     {
-        return node == null ? -1 : node.height;
+        return tree.height(node);
+    }
+
+    /**
+     * Returns the height of the tree.
+     *
+     * @return The height, or -1 if the tree is empty
+     */
+    public int height()
+    {
+        return height(root);
+    }
+
+    /**
+     * Counts the entries whose terms are less than the given term. If the
+     * term is in the tree this is its 0-based position in term order.
+     *
+     * @param term The term to rank
+     * @return The number of entries with smaller terms
+     */
+    public int rank(String term)
+    {
+        return entries().rank(entryRoot(), probe(term));
+    }
+
+    /**
+     * Returns the entry at a 0-based position in term order.
+     *
+     * @param k The position of the entry
+     * @return The k-th smallest entry, or null if k is out of range
+     */
+    public Entry select(int k)
+    {
+        return entries().select(entryRoot(), k);
+    }
+
+    /**
+     * Counts the entries whose terms lie in [from, to).
+     *
+     * @param from The first term to include, or null to start at the beginning
+     * @param to The first term to exclude, or null to run to the end
+     * @return The number of entries in the range
+     */
+    public int countRange(String from, String to)
+    {
+        return entries().countRange(entryRoot(), probe(from), probe(to));
     }
 
     /**
@@ -193,52 +407,821 @@ public class AVLTreeDatabase<dataType extends Comparable<? super dataType>>
      */
     public Entry find(String term)
     {
-        return find(term, (BTNode<Entry>) root);
+        if (metrics == null)
+            return lookup(term);
+
+        long start = System.nanoTime();
+        long comparisons = searchComparisonCount;
+        Entry entry = lookup(term);
+        metrics.findNanos.record(System.nanoTime() - start);
+        metrics.findComparisons.record(searchComparisonCount - comparisons);
+        return entry;
     }
 
     /**
-     * Recursive helper method to find an entry by its term.
+     * Finds an entry by its term, going through the term filter and the
+     * cache if there are any.
      *
      * @param term The term to search for
-     * @param node The current node in the recursion
      * @return The Entry if found, null otherwise
      */
-    public Entry find(String term, BTNode<Entry> node)
+    private Entry lookup(String term)
     {
-        if (node == null)
+        if (termFilter != null && !termFilter.mightContain(term))
+        {
+            termFilter.record(1, 0);
             return null;
+        }
 
-        searchComparisonCount++; // Increment search comparisons counter
-        int cmp = term.compareTo(node.data.term);
-
-        if (cmp < 0)
-            return find(term, node.left);
-        else if (cmp > 0)
-            return find(term, node.right);
+        Entry entry;
+        if (cache == null)
+            entry = find(term, entryRoot());
         else
-            return node.data;
+        {
+            Entry cached = cache.get(term);
+            if (cached != null)
+                return cached == TermCache.NEGATIVE ? null : cached;
+
+            entry = find(term, entryRoot());
+            cache.put(term, entry);
+        }
+
+        if (entry == null && termFilter != null)
+            termFilter.record(0, 1);
+        return entry;
     }
 
     /**
-     * Reads entries from a file and inserts them into the AVL tree.
+     * Returns an iterator over all entries in term order.
+     *
+     * @return A lazy in-order iterator
      */
-    public void readFile()
+    public Iterator<Entry> iterator()
+    {
+        return entries().iterator(entryRoot(), null, null);
+    }
+
+    /**
+     * Returns all entries in term order.
+     *
+     * @return A lazy, ordered stream of entries
+     */
+    public Stream<Entry> stream()
+    {
+        return toStream(iterator());
+    }
+
+    /**
+     * Returns the entries whose terms lie in [from, to), in term order.
+     *
+     * @param from The first term to include, or null to start at the beginning
+     * @param to The first term to exclude, or null to run to the end
+     * @return A lazy, ordered stream of entries
+     */
+    public Stream<Entry> range(String from, String to)
+    {
+        return toStream(entries().iterator(entryRoot(), probe(from), probe(to)));
+    }
+
+    /**
+     * Returns the entries whose terms start with the given prefix, in term order.
+     *
+     * @param prefix The prefix to match
+     * @return A lazy, ordered stream of entries
+     */
+    public Stream<Entry> prefix(String prefix)
+    {
+        return toStream(entries().iterator(entryRoot(), probe(prefix), probe(prefixEnd(prefix))));
+    }
+
+    /**
+     * Wraps an in-order iterator as a sequential stream.
+     *
+     * @param it The iterator to wrap
+     * @return A stream over the iterator's entries
+     */
+    private static Stream<Entry> toStream(Iterator<Entry> it)
+    {
+        int characteristics = Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL;
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(it, characteristics), false);
+    }
+
+    /**
+     * Makes a read-only copy of the tree laid out for fast lookups. The copy
+     * shares the entries and finds exactly what find(String) finds now, but
+     * does not see later inserts.
+     *
+     * @return The frozen copy
+     */
+    public FrozenAVLTreeDatabase freeze()
+    {
+        Entry[] sorted = new Entry[size()];
+        Iterator<Entry> it = iterator();
+        for (int i = 0; i < sorted.length; i++)
+            sorted[i] = it.next();
+        return new FrozenAVLTreeDatabase(sorted);
+    }
+
+    /**
+     * Starts maintaining a secondary index on confidence, built from the
+     * current contents and kept up to date by insert.
+     */
+    public void enableConfidenceIndex()
+    {
+        confidenceIndex = new ConfidenceIndex();
+        iterator().forEachRemaining(confidenceIndex::add);
+    }
+
+    /**
+     * Stops maintaining the secondary index on confidence.
+     */
+    public void disableConfidenceIndex()
+    {
+        confidenceIndex = null;
+    }
+
+    /**
+     * Returns every entry with a confidence of at least the threshold,
+     * highest confidence first. Requires the confidence index.
+     *
+     * @param threshold The minimum confidence
+     * @return The matching entries
+     */
+    public List<Entry> findByMinConfidence(double threshold)
+    {
+        return requireConfidenceIndex().atLeast(threshold);
+    }
+
+    /**
+     * Returns the k most confident entries whose terms start with a prefix,
+     * highest confidence first. Requires the confidence index.
+     *
+     * If few terms share the prefix they are scanned directly, keeping the
+     * best k in a heap. Otherwise the confidence index is walked from the
+     * top, which finds k matches quickly when matches are common. The
+     * subtree sizes give the number of matching terms in O(log n), which
+     * decides between the two.
+     *
+     * @param prefix The prefix to match
+     * @param k The maximum number of entries to return
+     * @return The matching entries
+     */
+    public List<Entry> topByConfidence(String prefix, int k)
+    {
+        ConfidenceIndex index = requireConfidenceIndex();
+        if (k <= 0)
+            return new ArrayList<>();
+
+        long matches = countRange(prefix, prefixEnd(prefix));
+        if (matches * matches > (long) k * size())
+            return index.top(k, e -> e.term.startsWith(prefix));
+
+        PriorityQueue<Entry> best = new PriorityQueue<>(k, Comparator.comparingDouble((Entry e) -> e.confidence));
+        prefix(prefix).forEach(e -> {
+            if (best.size() < k)
+                best.add(e);
+            else if (e.confidence > best.peek().confidence)
+            {
+                best.poll();
+                best.add(e);
+            }
+        });
+
+        List<Entry> result = new ArrayList<>(best);
+        result.sort(Comparator.comparingDouble((Entry e) -> e.confidence).reversed());
+        return result;
+    }
+
+    /**
+     * Starts maintaining an index for fuzzy lookups, built from the current
+     * contents and kept up to date by insert.
+     */
+    public void enableFuzzyIndex()
+    {
+        fuzzyIndex = new FuzzyIndex(iterator());
+    }
+
+    /**
+     * Stops maintaining the index for fuzzy lookups.
+     */
+    public void disableFuzzyIndex()
+    {
+        fuzzyIndex = null;
+    }
+
+    /**
+     * Checks whether the index for fuzzy lookups is being maintained.
+     *
+     * @return true if findClosest can be used
+     */
+    public boolean hasFuzzyIndex()
+    {
+        return fuzzyIndex != null;
+    }
+
+    /**
+     * Returns the entries whose terms are within an edit distance of a term,
+     * closest first. Requires the fuzzy index.
+     *
+     * @param term The term to match
+     * @param maxDistance The largest edit distance to accept
+     * @param limit The maximum number of entries to return
+     * @return The matching entries
+     */
+    public List<Entry> findClosest(String term, int maxDistance, int limit)
+    {
+        if (fuzzyIndex == null)
+            throw new IllegalStateException("Fuzzy index is not enabled");
+        return fuzzyIndex.closest(term, maxDistance, limit);
+    }
+
+    /**
+     * Returns the smallest term greater than every term with the prefix.
+     * Every term from the prefix up to it starts with the prefix.
+     *
+     * @param prefix The prefix
+     * @return The exclusive upper bound, or null if there is none
+     */
+    private static String prefixEnd(String prefix)
+    {
+        int end = prefix.length();
+        while (end > 0 && prefix.charAt(end - 1) == Character.MAX_VALUE)
+            end--;
+        if (end == 0)
+            return null;
+        return prefix.substring(0, end - 1) + (char) (prefix.charAt(end - 1) + 1);
+    }
+
+    /**
+     * Returns the confidence index, failing if it has not been enabled.
+     *
+     * @return The confidence index
+     */
+    private ConfidenceIndex requireConfidenceIndex()
+    {
+        if (confidenceIndex == null)
+            throw new IllegalStateException("Confidence index is not enabled");
+        return confidenceIndex;
+    }
+
+    /**
+     * Rebuilds the auxiliary structures after the whole tree was replaced.
+     */
+    private void reindex()
+    {
+        if (cache != null)
+            cache.clear();
+        if (confidenceIndex != null)
+            enableConfidenceIndex();
+        if (fuzzyIndex != null)
+            enableFuzzyIndex();
+        if (termFilter != null)
+            rebuildTermFilter(termFilter.resized(size() + size() / 8));
+    }
+
+    /**
+     * Puts a bounded cache in front of find(String), replacing any existing
+     * cache. Both hits and misses are cached, and inserts invalidate the
+     * affected term.
+     *
+     * @param capacity The maximum number of cached terms
+     * @param policy The eviction policy
+     */
+    public void enableCache(int capacity, TermCache.Policy policy)
+    {
+        cache = new TermCache(capacity, policy);
+    }
+
+    /**
+     * Removes the cache in front of find(String).
+     */
+    public void disableCache()
+    {
+        cache = null;
+    }
+
+    /**
+     * Returns the cache in front of find(String).
+     *
+     * @return The cache, or null if caching is disabled
+     */
+    public TermCache getCache()
+    {
+        return cache;
+    }
+
+    /**
+     * Puts a Bloom filter over the terms in front of every lookup, built
+     * from the current contents and kept up to date by insert, so that most
+     * lookups of absent terms skip the descent. If it is enabled before a
+     * load it is built as the entries arrive.
+     *
+     * @param falsePositiveRate The share of absent terms the filter may let
+     *        through, between 0 and 1 exclusive
+     */
+    public void enableTermFilter(double falsePositiveRate)
     {
-        try (BufferedReader br = new BufferedReader(new FileReader(filePath))) {
-            String line;
+        rebuildTermFilter(new TermFilter(size() + size() / 8, falsePositiveRate));
+    }
+
+    /**
+     * Removes the term filter.
+     */
+    public void disableTermFilter()
+    {
+        termFilter = null;
+    }
+
+    /**
+     * Returns the filter in front of lookups.
+     *
+     * @return The filter, or null if it is disabled
+     */
+    public TermFilter getTermFilter()
+    {
+        return termFilter;
+    }
+
+    /**
+     * Fills an empty filter with every term in the tree and puts it in front
+     * of lookups. Filters built for a loaded tree are sized with an eighth
+     * to spare, so a few inserts afterwards do not force a rebuild.
+     *
+     * @param filter The empty filter
+     */
+    private void rebuildTermFilter(TermFilter filter)
+    {
+        iterator().forEachRemaining(e -> filter.add(e.term));
+        termFilter = filter;
+    }
+
+    /**
+     * Finds an entry by its term below the given node.
+     *
+     * @param term The term to search for
+     * @param node The root of the subtree to search
+     * @return The Entry if found, null otherwise
+     */
+    public Entry find(String term, BTNode<Entry> node)
+    {
+        while (node != null)
+        {
+            searchComparisonCount++; // Increment search comparisons counter
+            int cmp = term.compareTo(node.data.term);
+
+            if (cmp < 0)
+                node = node.left;
+            else if (cmp > 0)
+                node = node.right;
+            else
+                return node.data;
+        }
+        return null;
+    }
+
+    /**
+     * Finds many terms at once, splitting the work across the common
+     * fork-join pool. Terms the term filter rejects are not looked up. The
+     * tree must not be modified while this runs.
+     * Comparisons are counted per task and added to the search counter once
+     * at the end.
+     *
+     * Unlike find(String), the lookups do not go through the cache, which is
+     * not safe to use from several threads, and the metrics record one batch
+     * rather than one find per term.
+     *
+     * @param terms The terms to search for
+     * @return The entries found, in the same order as terms, with null for
+     *         terms that are not in the tree
+     */
+    public Entry[] findAll(List<String> terms)
+    {
+        long start = metrics == null ? 0 : System.nanoTime();
+        Entry[] results = new Entry[terms.size()];
+        BatchFind task = new BatchFind(entryRoot(), termFilter, terms, results, 0, results.length);
+        searchComparisonCount += ForkJoinPool.commonPool().invoke(task);
+        if (metrics != null)
+            metrics.batchFindNanos.record(System.nanoTime() - start);
+        return results;
+    }
+
+    /**
+     * Finds many terms in one coordinated descent of the tree. The terms are
+     * sorted, and at each node the sorted run is split around the node's term
+     * by binary search, so neighbouring terms share the path above the point
+     * where they diverge. Terms the term filter rejects are left out. Every
+     * term-to-node comparison is added to the search counter.
+     *
+     * @param terms The terms to search for
+     * @return The entries found, in the same order as terms, with null for
+     *         terms that are not in the tree
+     */
+    public Entry[] findAllSorted(List<String> terms)
+    {
+        long start = metrics == null ? 0 : System.nanoTime();
+        TermFilter filter = termFilter;
+        int[] order = IntStream.range(0, terms.size())
+                .filter(i -> filter == null || filter.mightContain(terms.get(i)))
+                .boxed()
+                .sorted((a, b) -> terms.get(a).compareTo(terms.get(b)))
+                .mapToInt(Integer::intValue)
+                .toArray();
+
+        String[] sorted = new String[order.length];
+        for (int i = 0; i < order.length; i++)
+            sorted[i] = terms.get(order[i]);
 
-            while ((line = br.readLine()) != null) {
-                String[] parts = line.split("\t");
-                if (parts.length >= 3) {
-                    String term = parts[0];
-                    String tree = parts[1];
-                    double confidence = Double.parseDouble(parts[2]);
-                    insert((dataType) new Entry(term, tree, confidence));
+        Entry[] found = new Entry[order.length];
+        findSorted(entryRoot(), sorted, found, 0, sorted.length);
+
+        Entry[] results = new Entry[terms.size()];
+        long passedMisses = 0;
+        for (int i = 0; i < order.length; i++)
+        {
+            results[order[i]] = found[i];
+            if (found[i] == null)
+                passedMisses++;
+        }
+        if (filter != null)
+            filter.record(terms.size() - order.length, passedMisses);
+        if (metrics != null)
+            metrics.batchFindNanos.record(System.nanoTime() - start);
+        return results;
+    }
+
+    /**
+     * Recursive helper that resolves a sorted run of terms against a subtree.
+     *
+     * @param node The root of the subtree
+     * @param sorted The sorted terms
+     * @param found The entries found, indexed like sorted
+     * @param lo The first index of the run (inclusive)
+     * @param hi The last index of the run (exclusive)
+     */
+    private void findSorted(BTNode<Entry> node, String[] sorted, Entry[] found, int lo, int hi)
+    {
+        if (node == null || lo >= hi)
+            return;
+
+        String key = node.data.term;
+
+        // First index in the run whose term is not less than the node's term
+        int a = lo, b = hi;
+        while (a < b)
+        {
+            int mid = (a + b) >>> 1;
+            searchComparisonCount++;
+            if (sorted[mid].compareTo(key) < 0)
+                a = mid + 1;
+            else
+                b = mid;
+        }
+
+        int end = a;
+        while (end < hi)
+        {
+            searchComparisonCount++;
+            if (sorted[end].compareTo(key) != 0)
+                break;
+            found[end++] = node.data;
+        }
+
+        findSorted(node.left, sorted, found, lo, a);
+        findSorted(node.right, sorted, found, end, hi);
+    }
+
+    /**
+     * Looks up a slice of a batch of terms, forking halves until the slices
+     * are small enough to run directly.
+     */
+    private static class BatchFind extends RecursiveTask<Long>
+    {
+        private static final long serialVersionUID = 1L;
+        private static final int THRESHOLD = 1024;
+
+        private final BTNode<Entry> root;
+        private final TermFilter filter;
+        private final List<String> terms;
+        private final Entry[] results;
+        private final int from, to;
+
+        BatchFind(BTNode<Entry> root, TermFilter filter, List<String> terms, Entry[] results, int from, int to)
+        {
+            this.root = root;
+            this.filter = filter;
+            this.terms = terms;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Long compute()
+        {
+            if (to - from > THRESHOLD)
+            {
+                int mid = (from + to) >>> 1;
+                BatchFind left = new BatchFind(root, filter, terms, results, from, mid);
+                left.fork();
+                long right = new BatchFind(root, filter, terms, results, mid, to).compute();
+                return left.join() + right;
+            }
+
+            long comparisons = 0;
+            long rejected = 0, passedMisses = 0;
+            for (int i = from; i < to; i++)
+            {
+                String term = terms.get(i);
+                if (filter != null && !filter.mightContain(term))
+                {
+                    rejected++;
+                    continue;
+                }
+
+                BTNode<Entry> node = root;
+                while (node != null)
+                {
+                    comparisons++;
+                    int cmp = term.compareTo(node.data.term);
+                    if (cmp < 0)
+                        node = node.left;
+                    else if (cmp > 0)
+                        node = node.right;
+                    else
+                    {
+                        results[i] = node.data;
+                        break;
+                    }
                 }
+                if (filter != null && results[i] == null)
+                    passedMisses++;
             }
-        } catch (IOException e) {
+            if (filter != null)
+                filter.record(rejected, passedMisses);
+            return comparisons;
+        }
+    }
+
+    /**
+     * Reads entries from a file and inserts them into the AVL tree. A last
+     * line without a newline is left out, as it may still be being written,
+     * and readAppended continues from the end of the last complete line.
+     */
+    public void readFile()
+    {
+        long startTime = System.nanoTime();
+        int before = size();
+        try
+        {
+            fileOffset = KBFileReader.forEachEntry(filePath, null, newPool(), 1, Integer.MAX_VALUE, e -> apply(data(e)));
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+        recordLoad("readFile", before, startTime);
+    }
+
+    /**
+     * Inserts the entries on the complete lines appended to the file since
+     * it was last read. Reading continues from where the last readFile,
+     * readFileBulk, readSnapshot or readAppended stopped, so nothing is read
+     * twice, and on its own this loads a file that is still growing; a last
+     * line without a newline is left until it is finished. If the file
+     * shrinks, it is read again from the start. Main calls this after
+     * loading a snapshot, to pick up lines appended to the file since.
+     *
+     * @return The number of entries read
+     */
+    public int readAppended()
+    {
+        long startTime = System.nanoTime();
+        int before = size();
+        try
+        {
+            if (tail == null)
+                tail = new KBTailFollower(filePath, batch -> batch.forEach(e -> apply(data(e))), 4096);
+            if (tail.getPosition() != fileOffset)
+                tail.seek(fileOffset);
+
+            int read = tail.poll();
+            fileOffset = tail.getPosition();
+            return read;
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+            return 0;
+        }
+        finally
+        {
+            recordLoad("readAppended", before, startTime);
+        }
+    }
+
+    /**
+     * Reads the whole file in parallel and builds a perfectly balanced tree
+     * from the sorted entries in one pass, instead of inserting line by line.
+     * As with readFile, the first line seen for a term wins, a last line
+     * without a newline is left out, and readAppended continues from the end
+     * of the last complete line.
+     */
+    public void readFileBulk()
+    {
+        long startTime = System.nanoTime();
+        int before = size();
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ))
+        {
+            long length = KBFileReader.lastLineEnd(channel, 0, channel.size());
+            bulkLoad(data(KBFileReader.readEntries(channel, length, newPool()).toArray(new Entry[0])));
+            fileOffset = length;
+        }
+        catch (IOException e)
+        {
             e.printStackTrace();
         }
+        recordLoad("readFileBulk", before, startTime);
+    }
+
+    /**
+     * Records a finished load, if metrics are enabled.
+     *
+     * @param kind The kind of load
+     * @param before The number of entries in the tree before the load
+     * @param startTime The System.nanoTime() when the load started
+     */
+    private void recordLoad(String kind, int before, long startTime)
+    {
+        if (metrics != null)
+            metrics.recordLoad(kind, size() - before, System.nanoTime() - startTime);
+    }
+
+    /**
+     * Builds the tree directly from the given elements. The elements are sorted
+     * (stably, so earlier duplicates win) and the balanced tree is built in
+     * linear time. Elements already in the tree take precedence over new ones,
+     * and duplicates are merged according to the duplicate policy.
+     *
+     * @param items The elements to load, in input order
+     */
+    public void bulkLoad(dataType[] items)
+    {
+        root = tree.bulkLoad(root, items, duplicatePolicy == DuplicatePolicy.KEEP_FIRST ? null : merge);
+        reindex();
+    }
+
+    /**
+     * Writes the tree, including node heights, to a binary snapshot file,
+     * along with how far into the file and the attached log it has read and
+     * a checksum of the part of the file it holds. Logged inserts are made
+     * durable first, so the snapshot never holds records the log could lose.
+     *
+     * @param snapshotPath The path of the snapshot file
+     * @throws IOException If the snapshot cannot be written, or the file
+     *         cannot be read
+     */
+    public void writeSnapshot(String snapshotPath) throws IOException
+    {
+        if (log != null)
+        {
+            log.sync();
+            logOffset = log.length();
+        }
+        KBSnapshot.write(entryRoot(), duplicatePolicy, filePath, fileOffset, logOffset, snapshotPath);
+        unsnapshotted = 0;
+    }
+
+    /**
+     * Replaces the tree with the contents of a binary snapshot file. The
+     * tree is rebuilt exactly as it was written, without any re-balancing,
+     * readAppended continues from where it had read the file, and attachLog
+     * replays only the records logged after it was written. The snapshot is
+     * refused if the file no longer starts with the part it holds, such as
+     * when the file was edited or replaced; load the file itself instead.
+     *
+     * @param snapshotPath The path of the snapshot file
+     * @throws IOException If the snapshot cannot be read, is invalid, was
+     *         written under a different duplicate policy, or is out of date
+     *         with the file
+     */
+    public void readSnapshot(String snapshotPath) throws IOException
+    {
+        long startTime = System.nanoTime();
+        KBSnapshot.Image image = KBSnapshot.read(snapshotPath, duplicatePolicy, filePath);
+        setEntryRoot(image.root);
+        fileOffset = image.sourceOffset;
+        logOffset = image.logOffset;
+        reindex();
+        recordLoad("readSnapshot", 0, startTime);
+    }
+
+    /**
+     * Replays a write-ahead log on top of the current contents, then logs
+     * every later insert to it. This is done after the base file or snapshot
+     * has been loaded; entries loaded from files are never logged. A tree
+     * read from a snapshot replays only the records logged after the
+     * snapshot was written, and any other tree replays the whole log.
+     *
+     * @param log The log to attach
+     * @return The number of records replayed
+     * @throws IOException If the log cannot be read
+     */
+    public long attachLog(WriteAheadLog log) throws IOException
+    {
+        this.log = null;
+        long replayed = log.replay(logOffset, e -> apply(data(e)));
+        this.log = log;
+        unsnapshotted = replayed;
+        return replayed;
+    }
+
+    /**
+     * Stops logging inserts. The log itself is left open.
+     */
+    public void detachLog()
+    {
+        log = null;
+        compactionPath = null;
+    }
+
+    /**
+     * Compacts the log automatically once the given number of records have
+     * been logged since the last snapshot, by calling compactLog after the
+     * insert that reaches it.
+     *
+     * @param snapshotPath The path of the snapshot to write
+     * @param records The number of records that triggers compaction
+     */
+    public void compactLogEvery(String snapshotPath, long records)
+    {
+        compactionPath = snapshotPath;
+        compactionThreshold = records;
+    }
+
+    /**
+     * Writes the whole tree to a snapshot if anything has been logged since
+     * the last one, so that loading the snapshot replays none of the log,
+     * then compacts the log so the log file itself stays short. Compaction
+     * moves the records to the log's base rather than dropping them: a
+     * snapshot can be rebuilt from the text file, such as when it is lost or
+     * the duplicate policy changes, and the rebuilt tree then gets every
+     * logged insert back by replaying the whole log. The snapshot's position
+     * in the log is unchanged by compaction, so it still replays nothing.
+     *
+     * @param snapshotPath The path of the snapshot to write
+     * @return true if a snapshot was written and the log compacted
+     */
+    public boolean compactLog(String snapshotPath)
+    {
+        if (log == null || unsnapshotted == 0)
+            return false;
+
+        try
+        {
+            writeSnapshot(snapshotPath);
+            log.compact();
+            return true;
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Starts recording per-operation metrics. Until this is called, and
+     * after disableMetrics, nothing is measured.
+     *
+     * @return The metrics being recorded
+     */
+    public TreeMetrics enableMetrics()
+    {
+        if (metrics == null)
+        {
+            metrics = new TreeMetrics();
+            tree.setMetrics(metrics);
+        }
+        return metrics;
+    }
+
+    /**
+     * Stops recording metrics and discards them.
+     */
+    public void disableMetrics()
+    {
+        metrics = null;
+        tree.setMetrics(null);
+    }
+
+    /**
+     * Gets the metrics being recorded.
+     *
+     * @return The metrics, or null if metrics are disabled
+     */
+    public TreeMetrics getMetrics()
+    {
+        return metrics;
     }
 
     /**
@@ -255,7 +1238,7 @@ public class AVLTreeDatabase<dataType extends Comparable<? super dataType>>
      *
      * @return The count of insert comparisons
      */
-    public int getInsertComparisons()
+    public long getInsertComparisons()
     {
         return insertComparisonCount;
     }
@@ -265,7 +1248,7 @@ public class AVLTreeDatabase<dataType extends Comparable<? super dataType>>
      *
      * @return The count of search comparisons
      */
-    public int getSearchComparisons()
+    public long getSearchComparisons()
     {
         return searchComparisonCount;
     }
@@ -284,7 +1267,7 @@ public class AVLTreeDatabase<dataType extends Comparable<? super dataType>>
     /**
      * Returns the total number of comparisons made during operations
      */
-    public int getComparisonCount()
+    public long getComparisonCount()
     {
         return searchComparisonCount + insertComparisonCount;
     }
@@ -296,28 +1279,84 @@ public class AVLTreeDatabase<dataType extends Comparable<? super dataType>>
     {
         System.out.println("\nKey comparisons by search: " + searchComparisonCount);
         System.out.println("Key comparisons by insert: " + insertComparisonCount);
+        if (cache != null)
+            cache.printStatistics();
+        if (termFilter != null)
+            termFilter.printStatistics();
+        if (metrics != null)
+            metrics.printSummary();
     }
-}
 
-/**
- * Represents a node in the AVL tree.
- *
- * @param <dataType> The type of data stored in the node
- */
-class BTNode<dataType>
-{
-    dataType data;
-    BTNode<dataType> left, right;
-    int height;
+    /**
+     * Returns an entry with only a term, to compare against the stored
+     * entries.
+     *
+     * @param term The term, or null
+     * @return The entry, or null if term is null
+     */
+    private static Entry probe(String term)
+    {
+        return term == null ? null : new Entry(term, null, 0.0);
+    }
+
+    /**
+     * Returns the tree engine typed for entries, for the methods that work
+     * with terms. Only valid when dataType is Entry.
+     *
+     * @return The same tree, viewed as holding entries
+     */
+    @SuppressWarnings("unchecked")
+    private KeyedAVLTree<Entry, Entry> entries()
+    {
+        return (KeyedAVLTree<Entry, Entry>) (KeyedAVLTree<?, ?>) tree;
+    }
+
+    /**
+     * Returns the root typed for entries. Only valid when dataType is Entry.
+     *
+     * @return The root, or null if the tree is empty
+     */
+    @SuppressWarnings("unchecked")
+    private BTNode<Entry> entryRoot()
+    {
+        return (BTNode<Entry>) (BTNode<?>) root;
+    }
+
+    /**
+     * Replaces the root with a tree of entries, such as one read from a
+     * snapshot. Only valid when dataType is Entry.
+     *
+     * @param node The new root, or null to empty the tree
+     */
+    @SuppressWarnings("unchecked")
+    private void setEntryRoot(BTNode<Entry> node)
+    {
+        root = (BTNode<dataType>) (BTNode<?>) node;
+    }
+
+    /**
+     * Treats an entry read by a loader as an element. Only valid when
+     * dataType is Entry.
+     *
+     * @param entry The entry
+     * @return The same entry
+     */
+    @SuppressWarnings("unchecked")
+    private dataType data(Entry entry)
+    {
+        return (dataType) entry;
+    }
 
     /**
-     * Constructs a new node with the given data.
+     * Treats entries read by a loader as elements. Only valid when dataType
+     * is Entry.
      *
-     * @param d The data to store in the node
+     * @param entries The entries
+     * @return The same array
      */
-    public BTNode(dataType d)
+    @SuppressWarnings("unchecked")
+    private dataType[] data(Entry[] entries)
     {
-        data = d;
-        height = 0;
+        return (dataType[]) entries;
     }
 }
\ No newline at end of file
@@ -0,0 +1,404 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * ArrayAVLTreeDatabase is an AVL tree of entries stored as parallel arrays
+ * instead of BTNode and Entry objects. Nodes are int indices; links, heights
+ * and confidences live in primitive arrays, and terms and trees are packed
+ * into shared pools. It has the same insert and find behaviour, and counts
+ * comparisons the same way, as AVLTreeDatabase.
+ */
+public class ArrayAVLTreeDatabase
+{
+    private static final int NIL = -1;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    public String filePath;
+    public long searchComparisonCount = 0;
+    public long insertComparisonCount = 0;
+
+    private int root = NIL;
+    private int size = 0;
+
+    // The nodes an insert passes through, reused between inserts
+    private final int[] insertPath = new int[64];
+
+    private int[] left = new int[INITIAL_CAPACITY];
+    private int[] right = new int[INITIAL_CAPACITY];
+    private byte[] height = new byte[INITIAL_CAPACITY];
+    private double[] confidence = new double[INITIAL_CAPACITY];
+
+    /** Node i's term is termPool[termOffset[i] .. termOffset[i + 1]). */
+    private char[] termPool = new char[INITIAL_CAPACITY * 16];
+    private int[] termOffset = new int[INITIAL_CAPACITY + 1];
+
+    /** Node i's tree is the UTF-8 bytes treePool[treeOffset[i] .. treeOffset[i + 1]). */
+    private byte[] treePool = new byte[INITIAL_CAPACITY * 64];
+    private int[] treeOffset = new int[INITIAL_CAPACITY + 1];
+
+    /**
+     * Constructs an ArrayAVLTreeDatabase with the specified file path.
+     *
+     * @param filePath The path to the file containing the data
+     */
+    public ArrayAVLTreeDatabase(String filePath)
+    {
+        this.filePath = filePath;
+    }
+
+    /**
+     * Returns the number of entries in the tree.
+     *
+     * @return The number of entries
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Inserts an entry into the tree. If the term is already present the
+     * existing entry is kept.
+     *
+     * @param entry The entry to insert
+     */
+    public void insert(Entry entry)
+    {
+        insert(entry.term, entry.tree, entry.confidence);
+    }
+
+    /**
+     * Inserts a term, tree and confidence into the tree. If the term is
+     * already present the existing entry is kept.
+     *
+     * @param term The term of the entry
+     * @param tree The tree of the entry
+     * @param conf The confidence of the entry
+     */
+    public void insert(String term, String tree, double conf)
+    {
+        // Walk down as KeyedAVLTree.insert does, remembering the path and
+        // which way each step went, then rebalance back up it
+        int[] path = insertPath;
+        long wentRight = 0;
+        int depth = 0;
+
+        int current = root;
+        while (current != NIL)
+        {
+            path[depth] = current;
+            insertComparisonCount++;
+            int cmp = compare(term, current);
+            if (cmp < 0)
+                current = left[current];
+            else
+            {
+                insertComparisonCount++;
+                if (cmp > 0)
+                {
+                    wentRight |= 1L << depth;
+                    current = right[current];
+                }
+                else
+                    return;
+            }
+            depth++;
+        }
+
+        // newNode may grow the arrays, so they are only indexed after it
+        int child = newNode(term, tree, conf);
+        for (int i = depth - 1; i >= 0; i--)
+        {
+            int parent = path[i];
+            if ((wentRight & (1L << i)) != 0)
+                right[parent] = child;
+            else
+                left[parent] = child;
+
+            int oldHeight = height[parent];
+            child = balance(parent);
+            if (height[child] == oldHeight)
+            {
+                // Heights above are unchanged; at most the link to this
+                // subtree moved
+                if (i == 0)
+                    root = child;
+                else if ((wentRight & (1L << (i - 1))) != 0)
+                    right[path[i - 1]] = child;
+                else
+                    left[path[i - 1]] = child;
+                return;
+            }
+        }
+        root = child;
+    }
+
+    /**
+     * Finds an entry in the tree by its term.
+     *
+     * @param term The term to search for
+     * @return A new Entry holding the stored values if found, null otherwise
+     */
+    public Entry find(String term)
+    {
+        int node = root;
+        while (node != NIL)
+        {
+            searchComparisonCount++;
+            int cmp = compare(term, node);
+            if (cmp < 0)
+                node = left[node];
+            else if (cmp > 0)
+                node = right[node];
+            else
+                return entryAt(node);
+        }
+        return null;
+    }
+
+    /**
+     * Searches for an entry in the tree.
+     *
+     * @param entry The entry to search for
+     * @return The found entry, or null if not found
+     */
+    public Entry search(Entry entry)
+    {
+        return find(entry.term);
+    }
+
+    /**
+     * Reads entries from a file and inserts them into the tree.
+     */
+    public void readFile()
+    {
+        try
+        {
+            KBFileReader.forEachEntry(filePath, this::insert);
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Compares a term with the term stored at a node, in the same order as
+     * String.compareTo.
+     *
+     * @param term The term to compare
+     * @param node The node to compare against
+     * @return A negative integer, zero, or a positive integer as term is less
+     *         than, equal to, or greater than the node's term
+     */
+    private int compare(String term, int node)
+    {
+        int off = termOffset[node];
+        int len = termOffset[node + 1] - off;
+        int n = Math.min(term.length(), len);
+        char[] pool = termPool;
+        for (int k = 0; k < n; k++)
+        {
+            char c = term.charAt(k);
+            char d = pool[off + k];
+            if (c != d)
+                return c - d;
+        }
+        return term.length() - len;
+    }
+
+    /**
+     * Rebuilds the Entry stored at a node.
+     *
+     * @param node The node to read
+     * @return A new Entry with the node's values
+     */
+    private Entry entryAt(int node)
+    {
+        String term = new String(termPool, termOffset[node], termOffset[node + 1] - termOffset[node]);
+        String tree = new String(treePool, treeOffset[node], treeOffset[node + 1] - treeOffset[node],
+                StandardCharsets.UTF_8);
+        return new Entry(term, tree, confidence[node]);
+    }
+
+    /**
+     * Allocates a new leaf node, appending its term and tree to the pools.
+     *
+     * @param term The term of the entry
+     * @param tree The tree of the entry
+     * @param conf The confidence of the entry
+     * @return The index of the new node
+     */
+    private int newNode(String term, String tree, double conf)
+    {
+        if (size == left.length)
+            grow();
+
+        int node = size++;
+        left[node] = NIL;
+        right[node] = NIL;
+        height[node] = 0;
+        confidence[node] = conf;
+
+        int termStart = termOffset[node];
+        if (termStart + term.length() > termPool.length)
+            termPool = Arrays.copyOf(termPool, Math.max(termPool.length * 2, termStart + term.length()));
+        term.getChars(0, term.length(), termPool, termStart);
+        termOffset[node + 1] = termStart + term.length();
+
+        byte[] bytes = tree.getBytes(StandardCharsets.UTF_8);
+        int treeStart = treeOffset[node];
+        if (treeStart + bytes.length > treePool.length)
+            treePool = Arrays.copyOf(treePool, Math.max(treePool.length * 2, treeStart + bytes.length));
+        System.arraycopy(bytes, 0, treePool, treeStart, bytes.length);
+        treeOffset[node + 1] = treeStart + bytes.length;
+
+        return node;
+    }
+
+    /**
+     * Doubles the capacity of the per-node arrays.
+     */
+    private void grow()
+    {
+        int capacity = left.length * 2;
+        left = Arrays.copyOf(left, capacity);
+        right = Arrays.copyOf(right, capacity);
+        height = Arrays.copyOf(height, capacity);
+        confidence = Arrays.copyOf(confidence, capacity);
+        termOffset = Arrays.copyOf(termOffset, capacity + 1);
+        treeOffset = Arrays.copyOf(treeOffset, capacity + 1);
+    }
+
+    /**
+     * Performs a left rotation on the given node.
+     *
+     * @param q The node to rotate
+     * @return The new root of the rotated subtree
+     */
+    private int rotateLeft(int q)
+    {
+        int p = right[q];
+        right[q] = left[p];
+        left[p] = q;
+        fixHeight(q);
+        fixHeight(p);
+        return p;
+    }
+
+    /**
+     * Performs a right rotation on the given node.
+     *
+     * @param p The node to rotate
+     * @return The new root of the rotated subtree
+     */
+    private int rotateRight(int p)
+    {
+        int q = left[p];
+        left[p] = right[q];
+        right[q] = p;
+        fixHeight(p);
+        fixHeight(q);
+        return q;
+    }
+
+    /**
+     * Balances the tree at the given node.
+     *
+     * @param node The node to balance
+     * @return The new root of the balanced subtree
+     */
+    private int balance(int node)
+    {
+        fixHeight(node);
+
+        if (balanceFactor(node) == 2)
+        {
+            if (balanceFactor(right[node]) < 0)
+                right[node] = rotateRight(right[node]);
+            return rotateLeft(node);
+        }
+
+        if (balanceFactor(node) == -2)
+        {
+            if (balanceFactor(left[node]) > 0)
+                left[node] = rotateLeft(left[node]);
+            return rotateRight(node);
+        }
+
+        return node;
+    }
+
+    /**
+     * Calculates the balance factor of a node.
+     *
+     * @param node The node to calculate the balance factor for
+     * @return The balance factor
+     */
+    private int balanceFactor(int node)
+    {
+        return height(right[node]) - height(left[node]);
+    }
+
+    /**
+     * Updates the height of a node.
+     *
+     * @param node The node to update the height for
+     */
+    private void fixHeight(int node)
+    {
+        int hl = height(left[node]);
+        int hr = height(right[node]);
+        height[node] = (byte) ((hl > hr ? hl : hr) + 1);
+    }
+
+    /**
+     * Returns the height of a node.
+     *
+     * @param node The node to get the height of
+     * @return The height of the node, or -1 if the node is NIL
+     */
+    private int height(int node)
+    {
+        return node == NIL ? -1 : height[node];
+    }
+
+    /**
+     * Resets the comparison counters for both search and insert operations.
+     */
+    public void resetCounters()
+    {
+        searchComparisonCount = 0;
+        insertComparisonCount = 0;
+    }
+
+    /**
+     * Gets the number of comparisons made during the last insert operation.
+     *
+     * @return The count of insert comparisons
+     */
+    public long getInsertComparisons()
+    {
+        return insertComparisonCount;
+    }
+
+    /**
+     * Gets the number of comparisons made during the last search operation.
+     *
+     * @return The count of search comparisons
+     */
+    public long getSearchComparisons()
+    {
+        return searchComparisonCount;
+    }
+
+    /**
+     * Prints instrumentation data about the tree operations
+     */
+    public void printInstrumentation()
+    {
+        System.out.println("\nKey comparisons by search: " + searchComparisonCount);
+        System.out.println("Key comparisons by insert: " + insertComparisonCount);
+    }
+}
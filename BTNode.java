@@ -0,0 +1,30 @@
+/*
+  Student Number: FRTETH003
+  Name: Ethan Fortuin
+  Date: 23/03/25
+*/
+
+/**
+ * Represents a node in the AVL tree.
+ *
+ * @param <dataType> The type of data stored in the node
+ */
+class BTNode<dataType>
+{
+    dataType data;
+    BTNode<dataType> left, right;
+    int height;
+    int size;
+
+    /**
+     * Constructs a new node with the given data.
+     *
+     * @param d The data to store in the node
+     */
+    public BTNode(dataType d)
+    {
+        data = d;
+        height = 0;
+        size = 1;
+    }
+}
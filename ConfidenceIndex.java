@@ -0,0 +1,235 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * ConfidenceIndex is a secondary index of entries ordered by confidence.
+ * Confidences are kept in a primitive double array, sorted ascending, next
+ * to a parallel array of entries, so lookups are binary searches with no
+ * boxing. New entries go into a small unsorted buffer that is sorted and
+ * merged into the main arrays before the next query, which keeps inserts
+ * O(1) amortised.
+ *
+ * When an entry's confidence changes it is simply added again; the record
+ * under the old confidence no longer matches the entry, so queries skip it
+ * and the next merge of the pending buffer drops it.
+ */
+public class ConfidenceIndex
+{
+    private static final int MIN_CAPACITY = 16;
+
+    private double[] keys = new double[MIN_CAPACITY];
+    private Entry[] entries = new Entry[MIN_CAPACITY];
+    private int size = 0;
+
+    private double[] pendingKeys = new double[MIN_CAPACITY];
+    private Entry[] pendingEntries = new Entry[MIN_CAPACITY];
+    private int pendingSize = 0;
+
+    /**
+     * Adds an entry to the index under its current confidence.
+     *
+     * @param entry The entry to add
+     */
+    public void add(Entry entry)
+    {
+        if (pendingSize == pendingKeys.length)
+        {
+            pendingKeys = Arrays.copyOf(pendingKeys, pendingSize * 2);
+            pendingEntries = Arrays.copyOf(pendingEntries, pendingSize * 2);
+        }
+        pendingKeys[pendingSize] = entry.confidence;
+        pendingEntries[pendingSize] = entry;
+        pendingSize++;
+    }
+
+    /**
+     * Returns the number of records in the index, including records left
+     * behind by confidence changes since the last merge.
+     *
+     * @return The number of records
+     */
+    public int size()
+    {
+        return size + pendingSize;
+    }
+
+    /**
+     * Returns every entry whose confidence is at least the threshold, highest
+     * confidence first.
+     *
+     * @param threshold The minimum confidence
+     * @return The matching entries
+     */
+    public List<Entry> atLeast(double threshold)
+    {
+        merge();
+
+        int from = lowerBound(threshold);
+        List<Entry> result = new ArrayList<>(size - from);
+        for (int i = size - 1; i >= from; i--)
+        {
+            if (isCurrent(i))
+                result.add(entries[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Returns up to k entries that pass the filter, highest confidence first.
+     * The index is walked from the top and stops as soon as k are found.
+     *
+     * @param k The maximum number of entries to return
+     * @param filter The condition an entry must meet
+     * @return The matching entries
+     */
+    public List<Entry> top(int k, Predicate<Entry> filter)
+    {
+        merge();
+
+        List<Entry> result = new ArrayList<>(Math.min(k, size));
+        for (int i = size - 1; i >= 0 && result.size() < k; i--)
+        {
+            if (isCurrent(i) && filter.test(entries[i]))
+                result.add(entries[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Checks that a record still holds its entry's confidence.
+     *
+     * @param i The position of the record
+     * @return true unless the entry's confidence has changed since it was added
+     */
+    private boolean isCurrent(int i)
+    {
+        return Double.compare(keys[i], entries[i].confidence) == 0;
+    }
+
+    /**
+     * Finds the first position whose confidence is not less than a value.
+     *
+     * @param value The confidence to search for
+     * @return The index of the first key at or above value, or size if none
+     */
+    private int lowerBound(double value)
+    {
+        int lo = 0, hi = size;
+        while (lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if (Double.compare(keys[mid], value) < 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Sorts the pending buffer and merges it into the main arrays, dropping
+     * the records in either whose entry's confidence has since changed.
+     */
+    private void merge()
+    {
+        if (pendingSize == 0)
+            return;
+
+        sort(pendingKeys, pendingEntries, 0, pendingSize,
+                new double[pendingSize], new Entry[pendingSize]);
+
+        int total = size + pendingSize;
+        if (total > keys.length)
+        {
+            int capacity = Math.max(total, keys.length * 2);
+            keys = Arrays.copyOf(keys, capacity);
+            entries = Arrays.copyOf(entries, capacity);
+        }
+
+        // Merge from the back so the main arrays can be reused in place;
+        // on equal keys the older main entry stays first. Stale records are
+        // skipped, so the kept ones end up at the top and are moved down
+        int i = size - 1, j = pendingSize - 1, out = total - 1;
+        while (i >= 0 || j >= 0)
+        {
+            double key;
+            Entry entry;
+            if (j < 0 || (i >= 0 && Double.compare(keys[i], pendingKeys[j]) > 0))
+            {
+                key = keys[i];
+                entry = entries[i--];
+            }
+            else
+            {
+                key = pendingKeys[j];
+                entry = pendingEntries[j--];
+            }
+
+            if (Double.compare(key, entry.confidence) == 0)
+            {
+                keys[out] = key;
+                entries[out--] = entry;
+            }
+        }
+
+        int kept = total - 1 - out;
+        System.arraycopy(keys, out + 1, keys, 0, kept);
+        System.arraycopy(entries, out + 1, entries, 0, kept);
+        Arrays.fill(entries, kept, total, null);
+        size = kept;
+
+        Arrays.fill(pendingEntries, 0, pendingSize, null);
+        pendingSize = 0;
+    }
+
+    /**
+     * Stable merge sort of parallel key and entry arrays by key.
+     *
+     * @param k The keys
+     * @param v The entries
+     * @param lo The first index of the range (inclusive)
+     * @param hi The last index of the range (exclusive)
+     * @param tk Scratch space for keys
+     * @param tv Scratch space for entries
+     */
+    private static void sort(double[] k, Entry[] v, int lo, int hi, double[] tk, Entry[] tv)
+    {
+        if (hi - lo < 2)
+            return;
+
+        int mid = (lo + hi) >>> 1;
+        sort(k, v, lo, mid, tk, tv);
+        sort(k, v, mid, hi, tk, tv);
+        if (Double.compare(k[mid - 1], k[mid]) <= 0)
+            return;
+
+        System.arraycopy(k, lo, tk, lo, hi - lo);
+        System.arraycopy(v, lo, tv, lo, hi - lo);
+        int i = lo, j = mid, out = lo;
+        while (i < mid && j < hi)
+        {
+            if (Double.compare(tk[j], tk[i]) < 0)
+            {
+                k[out] = tk[j];
+                v[out++] = tv[j++];
+            }
+            else
+            {
+                k[out] = tk[i];
+                v[out++] = tv[i++];
+            }
+        }
+        while (i < mid)
+        {
+            k[out] = tk[i];
+            v[out++] = tv[i++];
+        }
+        while (j < hi)
+        {
+            k[out] = tk[j];
+            v[out++] = tv[j++];
+        }
+    }
+}
@@ -0,0 +1,15 @@
+/**
+ * Decides what happens when an entry is inserted for a term that is
+ * already in the tree.
+ */
+public enum DuplicatePolicy
+{
+    /** Keep the entry that was inserted first and drop later ones. */
+    KEEP_FIRST,
+
+    /** Keep whichever statement has the highest confidence. */
+    KEEP_HIGHEST_CONFIDENCE,
+
+    /** Keep every statement, ordered by confidence. */
+    KEEP_ALL
+}
@@ -15,6 +15,10 @@ public class Entry implements Comparable<Entry>
     public String tree;
     public double confidence;
 
+    // Every statement for this term when duplicates are kept; null while
+    // tree and confidence are the only statement
+    StatementList statements;
+
     /**
      * Constructs a new Entry with the specified term, tree, and confidence.
      *
@@ -29,6 +33,100 @@ public class Entry implements Comparable<Entry>
         this.confidence = confidence;
     }
 
+    /**
+     * Returns the number of statements stored for this term.
+     *
+     * @return The number of statements
+     */
+    public int statementCount()
+    {
+        return statements == null ? 1 : statements.size();
+    }
+
+    /**
+     * Returns the tree of one of this term's statements.
+     *
+     * @param i The position of the statement, 0 being the most confident
+     * @return The tree of the statement
+     */
+    public String treeAt(int i)
+    {
+        if (statements == null)
+        {
+            if (i != 0)
+                throw new IndexOutOfBoundsException("Statement " + i + " of 1");
+            return tree;
+        }
+        return statements.tree(i);
+    }
+
+    /**
+     * Returns the confidence of one of this term's statements.
+     *
+     * @param i The position of the statement, 0 being the most confident
+     * @return The confidence of the statement
+     */
+    public double confidenceAt(int i)
+    {
+        if (statements == null)
+        {
+            if (i != 0)
+                throw new IndexOutOfBoundsException("Statement " + i + " of 1");
+            return confidence;
+        }
+        return statements.confidence(i);
+    }
+
+    /**
+     * Returns a copy of this entry with its own statements, so that merging
+     * into the copy leaves this entry unchanged.
+     *
+     * @return The copy
+     */
+    public Entry copy()
+    {
+        Entry copy = new Entry(term, tree, confidence);
+        if (statements != null)
+            copy.statements = statements.copy();
+        return copy;
+    }
+
+    /**
+     * Merges another entry for the same term into this one. With
+     * KEEP_HIGHEST_CONFIDENCE the other statement replaces this one if it is
+     * more confident; with KEEP_ALL it is added to the statements. Either
+     * way tree and confidence end up holding the most confident statement.
+     * This entry is changed in place, so anything else holding it sees the
+     * merge; merge into a copy to avoid that.
+     *
+     * @param other The entry to merge in
+     * @param policy The duplicate policy to apply
+     * @return true if tree and confidence changed
+     */
+    public boolean merge(Entry other, DuplicatePolicy policy)
+    {
+        switch (policy)
+        {
+            case KEEP_HIGHEST_CONFIDENCE:
+                if (other.confidence <= confidence)
+                    return false;
+                tree = other.tree;
+                confidence = other.confidence;
+                return true;
+            case KEEP_ALL:
+                if (statements == null)
+                    statements = new StatementList(tree, confidence);
+                for (int i = 0; i < other.statementCount(); i++)
+                    statements.add(other.treeAt(i), other.confidenceAt(i));
+                boolean changed = statements.tree(0) != tree || statements.confidence(0) != confidence;
+                tree = statements.tree(0);
+                confidence = statements.confidence(0);
+                return changed;
+            default:
+                return false;
+        }
+    }
+
     /**
      * Compares this entry with another entry based on their terms.
      *
@@ -0,0 +1,262 @@
+import java.util.List;
+
+/**
+ * FrozenAVLTreeDatabase is a read-only copy of an AVLTreeDatabase laid out
+ * for fast lookups, made by AVLTreeDatabase.freeze(). It finds exactly the
+ * same entries as the tree it was made from, but cannot be changed.
+ *
+ * The entries are stored in Eytzinger order: slot 1 holds the root and the
+ * children of slot k are slots 2k and 2k + 1, so there are no node objects
+ * or pointers, and the top levels of every search share the same few cache
+ * lines.
+ *
+ * Every term that can reach a slot lies between the slot's two nearest
+ * ancestors on either side, so all of them share the prefix those two
+ * ancestors share. Each slot stores one long holding the length of that
+ * prefix and a fingerprint of the seven characters of its term that follow
+ * it, ordered like the terms themselves. Most steps of a search therefore
+ * read one array and compare two longs instead of following a String, even
+ * deep in the layout where the terms all start alike, and full terms are
+ * only compared when two fingerprints are equal and neither term ends
+ * within them.
+ *
+ * The search always runs to the bottom of the layout, choosing the next
+ * slot arithmetically instead of branching on the comparison, and checks
+ * for an exact match once at the end.
+ */
+public class FrozenAVLTreeDatabase
+{
+    public long searchComparisonCount = 0;
+    public long termComparisonCount = 0;
+
+    // Longest shared prefix a slot records; longer ones are recorded as this
+    private static final int MAX_OFFSET = 0xFF;
+
+    private final int size;
+    private final long[] keys;
+    private final Entry[] entries;
+
+    /**
+     * Constructs a frozen database from entries in term order.
+     *
+     * @param sorted The entries, sorted by term with no duplicates
+     */
+    FrozenAVLTreeDatabase(Entry[] sorted)
+    {
+        size = sorted.length;
+        keys = new long[size + 1];
+        entries = new Entry[size + 1];
+        layout(sorted, 0, 1);
+        layoutKeys(1, null, null);
+    }
+
+    /**
+     * Places entries into the Eytzinger slots below a slot by an in-order
+     * walk of the implicit tree.
+     *
+     * @param sorted The entries in term order
+     * @param next The index of the next entry to place
+     * @param slot The slot to fill
+     * @return The index of the next entry to place afterwards
+     */
+    private int layout(Entry[] sorted, int next, int slot)
+    {
+        if (slot > size)
+            return next;
+
+        next = layout(sorted, next, 2 * slot);
+        entries[slot] = sorted[next];
+        return layout(sorted, next + 1, 2 * slot + 1);
+    }
+
+    /**
+     * Works out the keys of the slots below a slot.
+     *
+     * @param slot The slot
+     * @param low The term of the nearest ancestor to the left, or null
+     * @param high The term of the nearest ancestor to the right, or null
+     */
+    private void layoutKeys(int slot, String low, String high)
+    {
+        if (slot > size)
+            return;
+
+        String term = entries[slot].term;
+        int offset = low == null || high == null ? 0 : Math.min(MAX_OFFSET, commonPrefix(low, high));
+        keys[slot] = key(term, offset);
+        layoutKeys(2 * slot, low, term);
+        layoutKeys(2 * slot + 1, term, high);
+    }
+
+    /**
+     * Returns the number of entries.
+     *
+     * @return The number of entries
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Finds an entry by its term.
+     *
+     * @param term The term to search for
+     * @return The Entry if found, null otherwise
+     */
+    public Entry find(String term)
+    {
+        // Offsets only grow on the way down, so the query's key is worked
+        // out again only when the slot's offset changes
+        long key = key(term, 0);
+        int k = 1;
+        while (k <= size)
+        {
+            long f = keys[k];
+            if ((f & MAX_OFFSET) != (key & MAX_OFFSET))
+                key = key(term, (int) f & MAX_OFFSET);
+
+            boolean greater;
+            if (key != f || (f & 0xFF00) == 0)
+                greater = key > f;
+            else
+            {
+                termComparisonCount++;
+                greater = term.compareTo(entries[k].term) > 0;
+            }
+            k = (k << 1) | (greater ? 1 : 0);
+        }
+        searchComparisonCount += 31 - Integer.numberOfLeadingZeros(k);
+
+        // Undo the right turns taken after the last left turn, which lands
+        // on the first slot whose term is not less than the one searched for
+        k >>>= Integer.numberOfTrailingZeros(~k) + 1;
+        if (k == 0)
+            return null;
+
+        long f = keys[k];
+        if (key(term, (int) f & MAX_OFFSET) != f)
+            return null;
+        if ((f & 0xFF00) == 0)
+            return entries[k];
+
+        termComparisonCount++;
+        return term.equals(entries[k].term) ? entries[k] : null;
+    }
+
+    /**
+     * Searches for an entry.
+     *
+     * @param entry The entry to search for
+     * @return The found entry, or null if not found
+     */
+    public Entry search(Entry entry)
+    {
+        return find(entry.term);
+    }
+
+    /**
+     * Finds many terms in turn.
+     *
+     * @param terms The terms to search for
+     * @return The entries found, in the same order as terms, with null for
+     *         terms that are not present
+     */
+    public Entry[] findAll(List<String> terms)
+    {
+        Entry[] results = new Entry[terms.size()];
+        for (int i = 0; i < results.length; i++)
+            results[i] = find(terms.get(i));
+        return results;
+    }
+
+    /**
+     * Works out the key of a term for a slot: a fingerprint of the seven
+     * characters from the offset in the top 56 bits, and the offset in the
+     * bottom 8. Each character becomes one byte, one more than the character
+     * so that 0 can mark the end of the term. Characters from U+00FE up all
+     * become 0xFF, and every byte after one of them is 0xFF too, since their
+     * order is lost. The sign bit is flipped so that signed comparison of
+     * keys with the same offset follows String.compareTo wherever they
+     * differ, for terms that share the characters before the offset. Equal
+     * keys whose last fingerprint byte is 0 mean equal terms.
+     *
+     * @param term The term
+     * @param offset The number of leading characters to skip
+     * @return The key
+     */
+    static long key(String term, int offset)
+    {
+        long f = 0;
+        boolean saturated = false;
+        for (int i = offset; i < offset + 7; i++)
+        {
+            int b;
+            if (saturated)
+                b = 0xFF;
+            else if (i >= term.length())
+                b = 0;
+            else
+            {
+                b = Math.min(term.charAt(i) + 1, 0xFF);
+                saturated = b == 0xFF;
+            }
+            f = (f << 8) | b;
+        }
+        return ((f << 8) | offset) ^ Long.MIN_VALUE;
+    }
+
+    /**
+     * Finds the length of the prefix two terms share.
+     *
+     * @param a The first term
+     * @param b The second term
+     * @return The number of leading characters they share
+     */
+    private static int commonPrefix(String a, String b)
+    {
+        int limit = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < limit && a.charAt(i) == b.charAt(i))
+            i++;
+        return i;
+    }
+
+    /**
+     * Resets the comparison counters.
+     */
+    public void resetCounters()
+    {
+        searchComparisonCount = 0;
+        termComparisonCount = 0;
+    }
+
+    /**
+     * Gets the number of fingerprint comparisons made by searches.
+     *
+     * @return The count of search comparisons
+     */
+    public long getSearchComparisons()
+    {
+        return searchComparisonCount;
+    }
+
+    /**
+     * Gets the number of times searches had to compare whole terms.
+     *
+     * @return The count of term comparisons
+     */
+    public long getTermComparisons()
+    {
+        return termComparisonCount;
+    }
+
+    /**
+     * Prints instrumentation data about the searches
+     */
+    public void printInstrumentation()
+    {
+        System.out.println("\nKey comparisons by search: " + searchComparisonCount);
+        System.out.println("Whole-term comparisons by search: " + termComparisonCount);
+    }
+}
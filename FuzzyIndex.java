@@ -0,0 +1,439 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * FuzzyIndex finds the terms within a bounded edit distance of a query
+ * without comparing the query against every term.
+ *
+ * Entries are kept sorted by term, so terms sharing a prefix sit next to
+ * each other like the paths of a trie. The search walks them in order
+ * computing one row of the Levenshtein table per character, reusing the rows
+ * of the prefix shared with the previous term. As soon as every value in a
+ * row exceeds the distance bound no term with that prefix can match, and the
+ * whole run of terms with the prefix is skipped with a galloping search. The
+ * work therefore depends on how many prefixes lie near the query, not on the
+ * number of terms.
+ *
+ * The terms are copied end to end into one character array, next to the
+ * length of the prefix each shares with the one before, so the walk reads
+ * memory in order instead of following an Entry and a String per term.
+ *
+ * New entries go into an unsorted buffer that searches check term by term.
+ * Only once it grows past a fraction of the index is it sorted and spliced
+ * into the packed arrays, copying the runs of packed terms between new ones
+ * whole, so a stream of adds between searches does not re-pack every term.
+ */
+public class FuzzyIndex
+{
+    private static final int MIN_CAPACITY = 16;
+    // The buffer is merged once it holds more than size >>> MERGE_SHIFT terms
+    private static final int MERGE_SHIFT = 5;
+    private static final Comparator<Entry> BY_TERM = Comparator.comparing((Entry e) -> e.term);
+
+    private Entry[] entries = new Entry[MIN_CAPACITY];
+    private int size = 0;
+
+    // Term i is chars[starts[i]] up to chars[starts[i + 1]], and shares its
+    // first shared[i] characters with term i - 1
+    private char[] chars = new char[0];
+    private int[] starts = new int[1];
+    private int[] shared = new int[0];
+
+    private Entry[] pending = new Entry[MIN_CAPACITY];
+    private int pendingSize = 0;
+
+    /**
+     * Constructs an empty index.
+     */
+    public FuzzyIndex()
+    {
+    }
+
+    /**
+     * Constructs an index of entries that are already in term order, such
+     * as the contents of a tree.
+     *
+     * @param sorted The entries, in term order
+     */
+    public FuzzyIndex(Iterator<Entry> sorted)
+    {
+        while (sorted.hasNext())
+        {
+            if (size == entries.length)
+                entries = Arrays.copyOf(entries, size * 2);
+            entries[size++] = sorted.next();
+        }
+        pack();
+    }
+
+    /**
+     * Adds an entry whose term is not yet in the index.
+     *
+     * @param entry The entry to add
+     */
+    public void add(Entry entry)
+    {
+        if (pendingSize == pending.length)
+            pending = Arrays.copyOf(pending, pendingSize * 2);
+        pending[pendingSize++] = entry;
+    }
+
+    /**
+     * Returns the number of terms in the index.
+     *
+     * @return The number of terms
+     */
+    public int size()
+    {
+        return size + pendingSize;
+    }
+
+    /**
+     * Returns the entries whose terms are within an edit distance of the
+     * query, closest first and in term order among equals. Insertions,
+     * deletions and substitutions of single characters each count as one
+     * edit.
+     *
+     * @param query The term to match
+     * @param maxDistance The largest edit distance to accept
+     * @param limit The maximum number of entries to return
+     * @return The matching entries
+     */
+    public List<Entry> closest(String query, int maxDistance, int limit)
+    {
+        merge();
+
+        int m = query.length();
+        int[][] rows = new int[m + maxDistance + 2][];
+        rows[0] = new int[m + 1];
+        for (int j = 0; j <= m; j++)
+            rows[0][j] = j;
+        char[] path = new char[rows.length];
+        int depth = 0;
+
+        // Matches are found in term order; bucket them by distance
+        List<List<Entry>> matches = new ArrayList<>();
+        for (int d = 0; d <= maxDistance; d++)
+            matches.add(new ArrayList<>());
+
+        int i = 0;
+        while (i < size)
+        {
+            int from = starts[i];
+            int len = starts[i + 1] - from;
+
+            // The path holds a prefix of term i - 1, or of the run just
+            // skipped, which ends with term i - 1; every row past
+            // m + maxDistance + 1 is over the bound, so the walk stops by then
+            int end = Math.min(len, m + maxDistance + 1);
+            depth = Math.min(Math.min(depth, shared[i]), end);
+
+            boolean dead = false;
+            while (depth < end)
+            {
+                char c = chars[from + depth];
+                path[depth] = c;
+                int[] prev = rows[depth];
+                int[] row = rows[depth + 1];
+                if (row == null)
+                    row = rows[depth + 1] = new int[m + 1];
+
+                // Only cells within maxDistance of the diagonal can be in
+                // range; the cells either side of the band are marked as out
+                // of range for the next row to read
+                int lo = Math.max(1, depth + 1 - maxDistance);
+                int hi = Math.min(m, depth + 1 + maxDistance);
+                row[0] = depth + 1;
+                if (lo > 1)
+                    row[lo - 1] = maxDistance + 1;
+                if (hi < m)
+                    row[hi + 1] = maxDistance + 1;
+
+                int best = row[0];
+                for (int j = lo; j <= hi; j++)
+                {
+                    int cost = query.charAt(j - 1) == c ? prev[j - 1] : prev[j - 1] + 1;
+                    int value = Math.min(cost, Math.min(prev[j], row[j - 1]) + 1);
+                    row[j] = value;
+                    if (value < best)
+                        best = value;
+                }
+                depth++;
+
+                if (best > maxDistance)
+                {
+                    dead = true;
+                    break;
+                }
+            }
+
+            if (dead)
+            {
+                i = skipPrefix(i, path, depth);
+                continue;
+            }
+
+            if (Math.abs(len - m) <= maxDistance && rows[depth][m] <= maxDistance)
+                matches.get(rows[depth][m]).add(entries[i]);
+            i++;
+        }
+
+        // Terms still in the buffer are checked one by one, then each bucket
+        // is put back in term order
+        boolean unsorted = false;
+        for (int j = 0; j < pendingSize; j++)
+        {
+            int distance = distance(query, pending[j].term, maxDistance);
+            if (distance <= maxDistance)
+            {
+                matches.get(distance).add(pending[j]);
+                unsorted = true;
+            }
+        }
+        if (unsorted)
+        {
+            for (List<Entry> bucket : matches)
+                bucket.sort(BY_TERM);
+        }
+
+        List<Entry> result = new ArrayList<>();
+        for (List<Entry> bucket : matches)
+        {
+            for (Entry entry : bucket)
+            {
+                if (result.size() == limit)
+                    return result;
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Works out the edit distance between two terms, giving up once it must
+     * exceed a bound.
+     *
+     * @param query The first term
+     * @param term The second term
+     * @param maxDistance The largest distance of interest
+     * @return The edit distance, or maxDistance + 1 if it is larger
+     */
+    private static int distance(String query, String term, int maxDistance)
+    {
+        int m = query.length(), n = term.length();
+        if (Math.abs(m - n) > maxDistance)
+            return maxDistance + 1;
+
+        int[] prev = new int[m + 1], row = new int[m + 1];
+        for (int j = 0; j <= m; j++)
+            prev[j] = j;
+        for (int k = 1; k <= n; k++)
+        {
+            char c = term.charAt(k - 1);
+            row[0] = k;
+            int best = k;
+            for (int j = 1; j <= m; j++)
+            {
+                int cost = query.charAt(j - 1) == c ? prev[j - 1] : prev[j - 1] + 1;
+                row[j] = Math.min(cost, Math.min(prev[j], row[j - 1]) + 1);
+                best = Math.min(best, row[j]);
+            }
+            if (best > maxDistance)
+                return maxDistance + 1;
+            int[] swap = prev;
+            prev = row;
+            row = swap;
+        }
+        return Math.min(prev[m], maxDistance + 1);
+    }
+
+    /**
+     * Finds the first term after a run of terms sharing a prefix.
+     *
+     * @param from The index of a term with the prefix
+     * @param prefix The prefix characters
+     * @param length The length of the prefix
+     * @return The index of the first later term without the prefix, or size
+     */
+    private int skipPrefix(int from, char[] prefix, int length)
+    {
+        // Gallop first, since most runs are short
+        int lo = from + 1, step = 1;
+        while (lo < size && hasPrefix(lo, prefix, length))
+        {
+            from = lo;
+            lo += step;
+            step <<= 1;
+        }
+
+        int hi = Math.min(lo, size);
+        lo = from + 1;
+        while (lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if (hasPrefix(mid, prefix, length))
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Checks whether a term starts with a prefix held in a character array.
+     *
+     * @param i The index of the term
+     * @param prefix The prefix characters
+     * @param length The length of the prefix
+     * @return true if the term starts with the prefix
+     */
+    private boolean hasPrefix(int i, char[] prefix, int length)
+    {
+        int from = starts[i];
+        if (starts[i + 1] - from < length)
+            return false;
+        for (int k = 0; k < length; k++)
+        {
+            if (chars[from + k] != prefix[k])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Merges the buffer into the packed arrays once it is large enough that
+     * checking it term by term costs more than merging. Searches running
+     * together on several threads synchronize here, so the one that merges
+     * publishes the new arrays to the others.
+     */
+    private synchronized void merge()
+    {
+        if (pendingSize == 0 || pendingSize <= size >>> MERGE_SHIFT)
+            return;
+
+        Arrays.sort(pending, 0, pendingSize, BY_TERM);
+
+        int total = size + pendingSize;
+        int length = starts[size];
+        for (int j = 0; j < pendingSize; j++)
+            length += pending[j].term.length();
+
+        Entry[] mergedEntries = new Entry[Math.max(total, MIN_CAPACITY)];
+        char[] mergedChars = new char[length];
+        int[] mergedStarts = new int[total + 1];
+        int[] mergedShared = new int[total];
+
+        int i = 0, out = 0, at = 0;
+        for (int j = 0; j <= pendingSize; j++)
+        {
+            // Copy the run of packed terms before the next new term whole;
+            // only the first of them needs its shared prefix worked out again
+            int end = j < pendingSize ? after(pending[j].term, i) : size;
+            if (end > i)
+            {
+                int from = starts[i];
+                int count = end - i;
+                System.arraycopy(entries, i, mergedEntries, out, count);
+                System.arraycopy(chars, from, mergedChars, at, starts[end] - from);
+                System.arraycopy(shared, i, mergedShared, out, count);
+                for (int k = 0; k < count; k++)
+                    mergedStarts[out + k] = starts[i + k] - from + at;
+                if (out > 0)
+                    mergedShared[out] = common(mergedChars, mergedStarts[out - 1], at, starts[i + 1] - from);
+                at += starts[end] - from;
+                out += count;
+                i = end;
+            }
+
+            if (j < pendingSize)
+            {
+                String term = pending[j].term;
+                term.getChars(0, term.length(), mergedChars, at);
+                mergedEntries[out] = pending[j];
+                mergedStarts[out] = at;
+                if (out > 0)
+                    mergedShared[out] = common(mergedChars, mergedStarts[out - 1], at, term.length());
+                at += term.length();
+                out++;
+            }
+        }
+        mergedStarts[total] = at;
+
+        entries = mergedEntries;
+        chars = mergedChars;
+        starts = mergedStarts;
+        shared = mergedShared;
+        size = total;
+
+        Arrays.fill(pending, 0, pendingSize, null);
+        pendingSize = 0;
+    }
+
+    /**
+     * Finds the first packed term after a term that is not in the index.
+     *
+     * @param term The term
+     * @param from The index to start from
+     * @return The index of the first later term, or size
+     */
+    private int after(String term, int from)
+    {
+        int lo = from, hi = size;
+        while (lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if (entries[mid].term.compareTo(term) < 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Counts the characters a term shares with the one packed just before it.
+     *
+     * @param chars The packed characters
+     * @param previous The start of the term before
+     * @param at The start of the term
+     * @param length The length of the term
+     * @return The length of the shared prefix
+     */
+    private static int common(char[] chars, int previous, int at, int length)
+    {
+        int limit = Math.min(length, at - previous);
+        int common = 0;
+        while (common < limit && chars[previous + common] == chars[at + common])
+            common++;
+        return common;
+    }
+
+    /**
+     * Copies the sorted terms into the character array and works out the
+     * prefix each shares with the one before.
+     */
+    private void pack()
+    {
+        int length = 0;
+        for (int i = 0; i < size; i++)
+            length += entries[i].term.length();
+
+        chars = new char[length];
+        starts = new int[size + 1];
+        shared = new int[size];
+        int at = 0;
+        for (int i = 0; i < size; i++)
+        {
+            String term = entries[i].term;
+            term.getChars(0, term.length(), chars, at);
+            starts[i] = at;
+            if (i > 0)
+                shared[i] = common(chars, starts[i - 1], at, term.length());
+            at += term.length();
+        }
+        starts[size] = at;
+    }
+}
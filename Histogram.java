@@ -0,0 +1,166 @@
+import java.util.Arrays;
+
+/**
+ * Histogram counts non-negative long values, such as latencies in
+ * nanoseconds or comparisons per operation, in log-linear buckets. Values
+ * below 64 get a bucket each; above that, every power of two is split into
+ * 32 equal buckets, so any recorded value is known to within about 3%.
+ * The buckets are one fixed array, so recording never allocates.
+ *
+ * It is not thread-safe; use one histogram per thread and add them together.
+ */
+public class Histogram
+{
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count = 0;
+    private long sum = 0;
+    private long min = Long.MAX_VALUE;
+    private long max = 0;
+
+    /**
+     * Records one value. Negative values are recorded as 0.
+     *
+     * @param value The value to record
+     */
+    public void record(long value)
+    {
+        if (value < 0)
+            value = 0;
+
+        counts[bucket(value)]++;
+        count++;
+        sum += value;
+        if (value < min)
+            min = value;
+        if (value > max)
+            max = value;
+    }
+
+    /**
+     * Adds every value recorded in another histogram to this one.
+     *
+     * @param other The histogram to add
+     */
+    public void add(Histogram other)
+    {
+        for (int i = 0; i < BUCKETS; i++)
+            counts[i] += other.counts[i];
+        count += other.count;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * Forgets every recorded value.
+     */
+    public void reset()
+    {
+        Arrays.fill(counts, 0);
+        count = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    /**
+     * Gets the number of values recorded.
+     *
+     * @return The number of values
+     */
+    public long getCount()
+    {
+        return count;
+    }
+
+    /**
+     * Gets the smallest value recorded.
+     *
+     * @return The smallest value, or 0 if nothing has been recorded
+     */
+    public long getMin()
+    {
+        return count == 0 ? 0 : min;
+    }
+
+    /**
+     * Gets the largest value recorded.
+     *
+     * @return The largest value, or 0 if nothing has been recorded
+     */
+    public long getMax()
+    {
+        return max;
+    }
+
+    /**
+     * Gets the exact mean of the values recorded.
+     *
+     * @return The mean, or 0 if nothing has been recorded
+     */
+    public double getMean()
+    {
+        return count == 0 ? 0.0 : (double) sum / count;
+    }
+
+    /**
+     * Gets the value at or below which the given share of values fall. The
+     * result is the top of the bucket holding that value, capped at the
+     * largest value recorded, so it is never an underestimate.
+     *
+     * @param percentile The percentile, from 0 to 100
+     * @return The value at the percentile, or 0 if nothing has been recorded
+     */
+    public long getPercentile(double percentile)
+    {
+        if (count == 0)
+            return 0;
+
+        long rank = (long) Math.ceil(Math.min(100.0, Math.max(0.0, percentile)) / 100.0 * count);
+        rank = Math.max(1, rank);
+
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.max(getMin(), Math.min(max, highestValue(i)));
+        }
+        return max;
+    }
+
+    /**
+     * Finds the bucket for a value.
+     *
+     * @param value A non-negative value
+     * @return The bucket index
+     */
+    static int bucket(long value)
+    {
+        if (value < 2 * SUB_COUNT)
+            return (int) value;
+
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return ((shift + 1) << SUB_BITS) + (int) (value >>> shift) - SUB_COUNT;
+    }
+
+    /**
+     * Finds the largest value that falls in a bucket.
+     *
+     * @param bucket The bucket index
+     * @return The largest value in the bucket
+     */
+    static long highestValue(int bucket)
+    {
+        if (bucket < 2 * SUB_COUNT)
+            return bucket;
+
+        int shift = (bucket >> SUB_BITS) - 1;
+        long sub = (bucket & (SUB_COUNT - 1)) + SUB_COUNT;
+        return ((sub + 1) << shift) - 1;
+    }
+}
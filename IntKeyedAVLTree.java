@@ -0,0 +1,138 @@
+import java.util.Iterator;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+/**
+ * IntKeyedAVLTree is an AVL tree of values of any type ordered by an int key
+ * taken from each value. The keys are widened to long and kept in a
+ * LongKeyedAVLTree, which has the same order, so neither inserts nor
+ * searches box a key.
+ *
+ * @param <V> The type of the values
+ */
+public class IntKeyedAVLTree<V> implements Iterable<V>
+{
+    private final LongKeyedAVLTree<V> tree;
+
+    /**
+     * Constructs an empty tree.
+     *
+     * @param keyOf Extracts the key from a value
+     */
+    public IntKeyedAVLTree(ToIntFunction<? super V> keyOf)
+    {
+        tree = new LongKeyedAVLTree<>(value -> keyOf.applyAsInt(value));
+    }
+
+    /**
+     * Returns the number of values in the tree.
+     *
+     * @return The number of values
+     */
+    public int size()
+    {
+        return tree.size();
+    }
+
+    /**
+     * Returns the height of the tree.
+     *
+     * @return The height, or -1 if the tree is empty
+     */
+    public int height()
+    {
+        return tree.height();
+    }
+
+    /**
+     * Inserts a value. If a value with the same key is already present the
+     * existing value is kept.
+     *
+     * @param value The value to insert
+     * @return true if the value was added
+     */
+    public boolean insert(V value)
+    {
+        return tree.insert(value);
+    }
+
+    /**
+     * Finds the value with a key.
+     *
+     * @param key The key to search for
+     * @return The value if found, null otherwise
+     */
+    public V find(int key)
+    {
+        return tree.find(key);
+    }
+
+    /**
+     * Checks whether a value with a key is present.
+     *
+     * @param key The key to search for
+     * @return true if the key is present
+     */
+    public boolean contains(int key)
+    {
+        return tree.contains(key);
+    }
+
+    /**
+     * Reads a file line by line and inserts a value parsed from each line.
+     *
+     * @param path The path to the file
+     * @param parser Turns a line into a value, or null to skip the line
+     */
+    public void readFile(String path, Function<String, ? extends V> parser)
+    {
+        tree.readFile(path, parser);
+    }
+
+    /**
+     * Returns an iterator over the values in key order.
+     *
+     * @return A lazy in-order iterator
+     */
+    @Override
+    public Iterator<V> iterator()
+    {
+        return tree.iterator();
+    }
+
+    /**
+     * Resets the comparison counters for both search and insert operations.
+     */
+    public void resetCounters()
+    {
+        tree.resetCounters();
+    }
+
+    /**
+     * Gets the number of comparisons made by inserts.
+     *
+     * @return The count of insert comparisons
+     */
+    public long getInsertComparisons()
+    {
+        return tree.getInsertComparisons();
+    }
+
+    /**
+     * Gets the number of comparisons made by searches.
+     *
+     * @return The count of search comparisons
+     */
+    public long getSearchComparisons()
+    {
+        return tree.getSearchComparisons();
+    }
+
+    /**
+     * Prints instrumentation data about the tree operations
+     */
+    public void printInstrumentation()
+    {
+        tree.printInstrumentation();
+    }
+}
@@ -0,0 +1,529 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+/**
+ * KBFileReader reads GenericsKB-style tab-separated files by memory-mapping
+ * them and scanning the raw bytes for tabs and newlines. Only the strings that
+ * are kept (term, tree, query line) are created, and the confidence is parsed
+ * straight from the bytes. Loads can optionally share repeated terms and
+ * statements through a StringPool.
+ *
+ * Lines end at '\n', with an optional '\r' before it. Unlike
+ * BufferedReader.readLine, a '\r' on its own does not end a line, so files
+ * with old Mac line endings are read as a single line.
+ */
+public final class KBFileReader
+{
+    /** Largest window mapped at once; lines never straddle two windows. */
+    private static final int WINDOW_SIZE = 1 << 30;
+
+    /** Exact powers of ten used by the fast confidence parser. */
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+    private KBFileReader()
+    {
+    }
+
+    /**
+     * Callback invoked for every line found by the scanner.
+     */
+    interface LineHandler
+    {
+        /**
+         * Handles one line, without its line terminator.
+         *
+         * @param buf The mapped window containing the line
+         * @param start The index of the first byte of the line
+         * @param end The index just past the last byte of the line
+         * @return false to stop scanning, true to continue
+         */
+        boolean line(MappedByteBuffer buf, int start, int end);
+    }
+
+    /**
+     * Reads every entry in the file, parsing chunks of the file in parallel.
+     * Entries are returned in file order.
+     *
+     * @param path The path to the knowledge base file
+     * @return The entries in the file
+     * @throws IOException If the file cannot be read
+     */
+    public static List<Entry> readEntries(String path) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ))
+        {
+            return readEntries(channel, channel.size(), null);
+        }
+    }
+
+    /**
+     * Reads every entry in the first length bytes of an open file in
+     * parallel, sharing repeated terms and statements through the given
+     * pool. Fixing the length up front lets the caller know exactly where
+     * reading stopped while the file is still growing.
+     *
+     * @param channel The open file
+     * @param length The number of bytes to read
+     * @param pool The pool for terms and statements, or null to keep every copy
+     * @return The entries in that part of the file
+     * @throws IOException If the file cannot be read
+     */
+    static List<Entry> readEntries(FileChannel channel, long length, StringPool pool) throws IOException
+    {
+        long[] bounds = splitAtLines(channel, length, Runtime.getRuntime().availableProcessors());
+
+        List<List<Entry>> chunks;
+        try
+        {
+            chunks = IntStream.range(0, bounds.length - 1).parallel()
+                    .mapToObj(i -> readChunk(channel, bounds[i], bounds[i + 1], pool))
+                    .toList();
+        }
+        catch (UncheckedIOException e)
+        {
+            throw e.getCause();
+        }
+
+        int total = 0;
+        for (List<Entry> chunk : chunks)
+            total += chunk.size();
+
+        List<Entry> entries = new ArrayList<>(total);
+        for (List<Entry> chunk : chunks)
+            entries.addAll(chunk);
+        return entries;
+    }
+
+    /**
+     * Passes every entry in the file to the given action, in file order.
+     *
+     * @param path The path to the knowledge base file
+     * @param action The action to perform on each entry
+     * @throws IOException If the file cannot be read
+     */
+    public static void forEachEntry(String path, Consumer<? super Entry> action) throws IOException
+    {
+        forEachEntry(path, 1, Integer.MAX_VALUE, action);
+    }
+
+    /**
+     * Passes the entries on lines start to end (1-based, inclusive) to the
+     * given action, in file order. Lines that are not valid entries still
+     * count towards the line numbers. Nothing is read if end is before start.
+     *
+     * @param path The path to the knowledge base file
+     * @param start The first line to read
+     * @param end The last line to read
+     * @param action The action to perform on each entry
+     * @throws IOException If the file cannot be read
+     */
+    public static void forEachEntry(String path, int start, int end, Consumer<? super Entry> action)
+            throws IOException
+    {
+        forEachEntry(path, null, null, start, end, action);
+    }
+
+    /**
+     * Passes the entries on lines start to end (1-based, inclusive) to the
+     * given action, using a sparse line index to jump close to the start
+     * line instead of reading every line before it. The index is extended
+     * as far as the start line if it does not reach it yet. A last line without a
+     * newline may still be being written, so it is left for a later read.
+     *
+     * @param path The path to the knowledge base file
+     * @param index The line index for this file, or null to scan from the start
+     * @param pool The pool for terms and statements, or null to keep every copy
+     * @param start The first line to read
+     * @param end The last line to read
+     * @param action The action to perform on each entry
+     * @return The offset just past the last line read, or 0 if nothing was read
+     * @throws IOException If the file cannot be read
+     */
+    static long forEachEntry(String path, LineOffsetIndex index, StringPool pool, int start, int end,
+                             Consumer<? super Entry> action) throws IOException
+    {
+        if (end < start)
+            return 0;
+
+        Path file = Paths.get(path);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            long offset = 0;
+            long[] count = {0};
+            if (index != null)
+            {
+                index.extend(file, channel, start);
+                long[] checkpoint = index.seek(start);
+                offset = checkpoint[0];
+                count[0] = checkpoint[1] - 1;
+            }
+
+            EntryParser parser = new EntryParser(pool);
+            long limit = lastLineEnd(channel, offset, channel.size());
+            return scan(channel, offset, limit, (buf, from, to) -> {
+                count[0]++;
+                if (count[0] >= start)
+                {
+                    Entry entry = parser.parse(buf, from, to);
+                    if (entry != null)
+                        action.accept(entry);
+                }
+                return count[0] < end;
+            });
+        }
+    }
+
+    /**
+     * Passes the entries in a byte range of an open file to the given
+     * action. The range must start at the beginning of a line.
+     *
+     * @param channel The open file
+     * @param from The offset of the first byte of the range
+     * @param to The offset just past the last byte of the range
+     * @param action The action to perform on each entry
+     * @throws IOException If the file cannot be read
+     */
+    static void forEachEntry(FileChannel channel, long from, long to, Consumer<? super Entry> action)
+            throws IOException
+    {
+        EntryParser parser = new EntryParser();
+        scan(channel, from, to, (buf, start, end) -> {
+            Entry entry = parser.parse(buf, start, end);
+            if (entry != null)
+                action.accept(entry);
+            return true;
+        });
+    }
+
+    /**
+     * Passes every line of the file, with surrounding whitespace trimmed, to
+     * the given action.
+     *
+     * @param path The path to the file
+     * @param action The action to perform on each line
+     * @throws IOException If the file cannot be read
+     */
+    public static void forEachLine(String path, Consumer<? super String> action) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ))
+        {
+            EntryParser parser = new EntryParser();
+            scan(channel, 0, channel.size(), (buf, from, to) -> {
+                while (from < to && (buf.get(from) & 0xFF) <= ' ')
+                    from++;
+                while (to > from && (buf.get(to - 1) & 0xFF) <= ' ')
+                    to--;
+                action.accept(parser.string(buf, from, to));
+                return true;
+            });
+        }
+    }
+
+    /**
+     * Parses the entries in one byte range of the file.
+     *
+     * @param channel The open file
+     * @param from The offset of the first byte of the range
+     * @param to The offset just past the last byte of the range
+     * @param pool The pool for terms and statements, or null
+     * @return The entries in the range, in file order
+     */
+    private static List<Entry> readChunk(FileChannel channel, long from, long to, StringPool pool)
+    {
+        List<Entry> entries = new ArrayList<>();
+        EntryParser parser = new EntryParser(pool);
+        try
+        {
+            scan(channel, from, to, (buf, start, end) -> {
+                Entry entry = parser.parse(buf, start, end);
+                if (entry != null)
+                    entries.add(entry);
+                return true;
+            });
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+        return entries;
+    }
+
+    /**
+     * Splits the first size bytes of the file into roughly equal byte
+     * ranges that start and end on line boundaries.
+     *
+     * @param channel The open file
+     * @param size The number of bytes to split
+     * @param parts The number of ranges wanted
+     * @return The range boundaries, starting at 0 and ending at size
+     * @throws IOException If the file cannot be read
+     */
+    static long[] splitAtLines(FileChannel channel, long size, int parts) throws IOException
+    {
+        if (parts < 1 || size < (long) parts * 4096)
+            parts = 1;
+
+        long[] bounds = new long[parts + 1];
+        bounds[parts] = size;
+        for (int i = 1; i < parts; i++)
+            bounds[i] = Math.max(bounds[i - 1], Math.min(size, nextLineStart(channel, size * i / parts)));
+        return bounds;
+    }
+
+    /**
+     * Finds the start of the first line beginning at or after the given offset.
+     *
+     * @param channel The open file
+     * @param offset The offset to search from
+     * @return The offset just past the next newline, or the file size
+     * @throws IOException If the file cannot be read
+     */
+    static long nextLineStart(FileChannel channel, long offset) throws IOException
+    {
+        if (offset == 0)
+            return 0;
+
+        long size = channel.size();
+        long pos = offset - 1;
+        while (pos < size)
+        {
+            int len = (int) Math.min(8192, size - pos);
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, pos, len);
+            for (int i = 0; i < len; i++)
+            {
+                if (buf.get(i) == '\n')
+                    return pos + i + 1;
+            }
+            pos += len;
+        }
+        return size;
+    }
+
+    /**
+     * Finds the end of the last complete line in a byte range, so that a line
+     * still being written is left for later.
+     *
+     * @param channel The open file
+     * @param from The offset to search back to
+     * @param to The offset to search back from
+     * @return The offset just past the last newline in the range, or from if there is none
+     * @throws IOException If the file cannot be read
+     */
+    static long lastLineEnd(FileChannel channel, long from, long to) throws IOException
+    {
+        long end = to;
+        while (end > from)
+        {
+            int len = (int) Math.min(8192, end - from);
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, end - len, len);
+            for (int i = len - 1; i >= 0; i--)
+            {
+                if (buf.get(i) == '\n')
+                    return end - len + i + 1;
+            }
+            end -= len;
+        }
+        return from;
+    }
+
+    /**
+     * Scans a byte range of the file line by line. The range must start at the
+     * beginning of a line. A trailing carriage return is not part of the line.
+     *
+     * @param channel The open file
+     * @param from The offset of the first byte of the range
+     * @param to The offset just past the last byte of the range
+     * @param handler The handler to call for each line
+     * @return The offset just past the last line handled
+     * @throws IOException If the file cannot be read
+     */
+    static long scan(FileChannel channel, long from, long to, LineHandler handler) throws IOException
+    {
+        long pos = from;
+        while (pos < to)
+        {
+            int len = (int) Math.min(WINDOW_SIZE, to - pos);
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, pos, len);
+            boolean last = pos + len == to;
+
+            int lineStart = 0;
+            for (int i = 0; i < len; i++)
+            {
+                if (buf.get(i) != '\n')
+                    continue;
+
+                int lineEnd = (i > lineStart && buf.get(i - 1) == '\r') ? i - 1 : i;
+                boolean more = handler.line(buf, lineStart, lineEnd);
+                lineStart = i + 1;
+                if (!more)
+                    return pos + lineStart;
+            }
+
+            if (last)
+            {
+                if (lineStart < len)
+                {
+                    int lineEnd = buf.get(len - 1) == '\r' ? len - 1 : len;
+                    handler.line(buf, lineStart, lineEnd);
+                }
+                return to;
+            }
+
+            if (lineStart == 0)
+                throw new IOException("Line longer than " + WINDOW_SIZE + " bytes at offset " + pos);
+            pos += lineStart;
+        }
+        return pos;
+    }
+
+    /**
+     * Turns mapped lines into entries. Each parser keeps its own scratch
+     * buffer, so one parser must not be shared between threads.
+     */
+    static final class EntryParser
+    {
+        private final StringPool pool;
+        private byte[] scratch = new byte[256];
+
+        /**
+         * Constructs a parser that creates a new string for every field.
+         */
+        EntryParser()
+        {
+            this(null);
+        }
+
+        /**
+         * Constructs a parser that takes terms and statements from a pool.
+         *
+         * @param pool The pool to share strings through, or null for none
+         */
+        EntryParser(StringPool pool)
+        {
+            this.pool = pool;
+        }
+
+        /**
+         * Parses a "term TAB tree TAB confidence" line.
+         *
+         * @param buf The mapped window containing the line
+         * @param start The index of the first byte of the line
+         * @param end The index just past the last byte of the line
+         * @return The parsed Entry, or null if the line has fewer than three fields
+         */
+        Entry parse(MappedByteBuffer buf, int start, int end)
+        {
+            int tab1 = indexOfTab(buf, start, end);
+            if (tab1 < 0)
+                return null;
+            int tab2 = indexOfTab(buf, tab1 + 1, end);
+            if (tab2 < 0)
+                return null;
+            int tab3 = indexOfTab(buf, tab2 + 1, end);
+            int confEnd = tab3 < 0 ? end : tab3;
+            if (confEnd == tab2 + 1)
+                return null;
+
+            double confidence = parseConfidence(buf, tab2 + 1, confEnd);
+            if (pool != null)
+                return new Entry(pool.intern(buf, start, tab1), pool.intern(buf, tab1 + 1, tab2), confidence);
+            return new Entry(string(buf, start, tab1), string(buf, tab1 + 1, tab2), confidence);
+        }
+
+        /**
+         * Decodes a UTF-8 byte range into a String.
+         *
+         * @param buf The mapped window
+         * @param start The index of the first byte
+         * @param end The index just past the last byte
+         * @return The decoded string
+         */
+        String string(MappedByteBuffer buf, int start, int end)
+        {
+            int len = end - start;
+            if (len > scratch.length)
+                scratch = new byte[Math.max(len, scratch.length * 2)];
+            buf.get(start, scratch, 0, len);
+            return new String(scratch, 0, len, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Parses a plain decimal such as "0.8734" directly from the bytes.
+         * Anything the fast path cannot represent exactly (exponents, very long
+         * mantissas, whitespace) falls back to Double.parseDouble.
+         *
+         * @param buf The mapped window
+         * @param start The index of the first byte
+         * @param end The index just past the last byte
+         * @return The parsed value
+         */
+        double parseConfidence(MappedByteBuffer buf, int start, int end)
+        {
+            int i = start;
+            boolean negative = false;
+            byte b = buf.get(i);
+            if (b == '-' || b == '+')
+            {
+                negative = b == '-';
+                i++;
+            }
+
+            long mantissa = 0;
+            int digits = 0;
+            int fraction = -1;
+            for (; i < end; i++)
+            {
+                b = buf.get(i);
+                if (b >= '0' && b <= '9')
+                {
+                    mantissa = mantissa * 10 + (b - '0');
+                    digits++;
+                    if (fraction >= 0)
+                        fraction++;
+                }
+                else if (b == '.' && fraction < 0)
+                    fraction = 0;
+                else
+                    break;
+            }
+
+            if (i == end && digits > 0 && digits <= 15 && fraction < POWERS_OF_TEN.length)
+            {
+                double value = fraction > 0 ? mantissa / POWERS_OF_TEN[fraction] : mantissa;
+                return negative ? -value : value;
+            }
+
+            return Double.parseDouble(string(buf, start, end));
+        }
+
+        /**
+         * Finds the next tab character in a range.
+         *
+         * @param buf The mapped window
+         * @param start The index to start at
+         * @param end The index to stop before
+         * @return The index of the tab, or -1 if there is none
+         */
+        private static int indexOfTab(MappedByteBuffer buf, int start, int end)
+        {
+            for (int i = start; i < end; i++)
+            {
+                if (buf.get(i) == '\t')
+                    return i;
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,365 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * KBSnapshot reads and writes a compact binary image of an AVL tree of
+ * entries, so the tree can be restored without re-parsing the text file or
+ * re-balancing.
+ *
+ * The file holds a header (magic, version, duplicate policy, entry count,
+ * how many bytes of the text file and of the write-ahead log the tree held,
+ * and the text file's size, modification time and a CRC32C of those bytes),
+ * then one record per node in sorted order (height, term, tree, confidence
+ * and any further statements), then a CRC32 of everything before it.
+ * Because every node is taller than all of its descendants, the in-order
+ * sequence of heights is enough to rebuild the exact tree shape.
+ *
+ * A snapshot is only read back while the text file still starts with the
+ * bytes the tree was loaded from: either the file is untouched since the
+ * snapshot was written, or it has grown and its first bytes still match the
+ * checksum. Otherwise the file was edited or replaced, and the snapshot is
+ * out of date.
+ */
+final class KBSnapshot
+{
+    static final int MAGIC = 0x41564C53; // "AVLS"
+    static final int VERSION = 5;
+
+    private static final int HEADER_SIZE = 56;
+    private static final int TRAILER_SIZE = 8;
+
+    private KBSnapshot()
+    {
+    }
+
+    /**
+     * A tree read back from a snapshot, with how much of the text file and
+     * of the write-ahead log it held when it was written.
+     */
+    static final class Image
+    {
+        final BTNode<Entry> root;
+        final long sourceOffset;
+        final long logOffset;
+
+        Image(BTNode<Entry> root, long sourceOffset, long logOffset)
+        {
+            this.root = root;
+            this.sourceOffset = sourceOffset;
+            this.logOffset = logOffset;
+        }
+    }
+
+    /**
+     * Writes the tree to a snapshot file. The file is written to a temporary
+     * name first and moved into place, so readers never see a partial file.
+     *
+     * @param root The root of the tree to write
+     * @param policy The duplicate policy the tree was built with
+     * @param sourcePath The path of the text file the tree was loaded from
+     * @param sourceOffset The number of bytes of the text file in the tree
+     * @param logOffset The length of the write-ahead log whose records are in the tree
+     * @param path The path of the snapshot file
+     * @throws IOException If the file cannot be written, or the text file
+     *         cannot be read or is shorter than sourceOffset
+     */
+    static void write(BTNode<Entry> root, DuplicatePolicy policy, String sourcePath, long sourceOffset,
+                      long logOffset, String path) throws IOException
+    {
+        long sourceSize = 0, sourceModified = 0, sourceChecksum = 0;
+        if (sourceOffset > 0)
+        {
+            Path source = Paths.get(sourcePath);
+            try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ))
+            {
+                sourceSize = channel.size();
+                if (sourceSize < sourceOffset)
+                    throw new IOException("Text file is shorter than the tree loaded from it: " + sourcePath);
+                sourceModified = Files.getLastModifiedTime(source).toMillis();
+                sourceChecksum = checksum(channel, sourceOffset);
+            }
+        }
+
+        Path target = Paths.get(path);
+        Path temp = Paths.get(path + ".tmp");
+
+        try (FileOutputStream file = new FileOutputStream(temp.toFile()))
+        {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(file, 1 << 16), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(policy.ordinal());
+            out.writeInt(root == null ? 0 : root.size);
+            out.writeLong(sourceOffset);
+            out.writeLong(logOffset);
+            out.writeLong(sourceSize);
+            out.writeLong(sourceModified);
+            out.writeLong(sourceChecksum);
+
+            Deque<BTNode<Entry>> stack = new ArrayDeque<>();
+            BTNode<Entry> node = root;
+            while (node != null || !stack.isEmpty())
+            {
+                while (node != null)
+                {
+                    stack.push(node);
+                    node = node.left;
+                }
+                node = stack.pop();
+                writeNode(out, node);
+                node = node.right;
+            }
+
+            out.writeLong(checked.getChecksum().getValue());
+            out.flush();
+            file.getFD().sync();
+        }
+
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads a snapshot file and rebuilds the tree it describes.
+     *
+     * @param path The path of the snapshot file
+     * @param policy The duplicate policy the tree must have been built with
+     * @param sourcePath The path of the text file the tree was loaded from,
+     *        or null to skip checking it
+     * @return The rebuilt tree
+     * @throws IOException If the file cannot be read, is corrupt, has an
+     *         unsupported version, was built with a different policy, or the
+     *         text file no longer starts with the bytes the tree was loaded from
+     */
+    static Image read(String path, DuplicatePolicy policy, String sourcePath) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ))
+        {
+            long size = channel.size();
+            if (size < HEADER_SIZE + TRAILER_SIZE)
+                throw new IOException("Snapshot too short: " + path);
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("Snapshot too large to map: " + path);
+
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int body = (int) size - TRAILER_SIZE;
+
+            CRC32 crc = new CRC32();
+            crc.update(buf.slice(0, body));
+            if (crc.getValue() != buf.getLong(body))
+                throw new IOException("Snapshot checksum mismatch: " + path);
+
+            if (buf.getInt(0) != MAGIC)
+                throw new IOException("Not a snapshot file: " + path);
+            int version = buf.getInt(4);
+            if (version != VERSION)
+                throw new IOException("Unsupported snapshot version " + version + ": " + path);
+
+            int written = buf.getInt(8);
+            if (written != policy.ordinal())
+                throw new IOException("Snapshot was built with duplicate policy "
+                        + DuplicatePolicy.values()[written] + ", not " + policy + ": " + path);
+
+            int count = buf.getInt(12);
+            long sourceOffset = buf.getLong(16);
+            long logOffset = buf.getLong(24);
+            if (!continues(sourcePath, sourceOffset, buf.getLong(32), buf.getLong(40), buf.getLong(48)))
+                throw new IOException("Snapshot is out of date with " + sourcePath + ": " + path);
+
+            buf.position(HEADER_SIZE);
+            return new Image(readTree(buf, count), sourceOffset, logOffset);
+        }
+    }
+
+    /**
+     * Checks whether the text file still starts with the bytes a snapshot's
+     * tree was loaded from. A file whose size and modification time are
+     * unchanged is taken as untouched; any other file must be at least as
+     * long and match the checksum of those bytes.
+     *
+     * @param sourcePath The path of the text file, or null if there is none
+     * @param sourceOffset The number of bytes of the file in the tree
+     * @param size The size of the file when the snapshot was written
+     * @param modified The modification time of the file then, in milliseconds
+     * @param checksum The CRC32C of the first sourceOffset bytes
+     * @return true if the tree still matches the start of the file
+     * @throws IOException If the file cannot be read
+     */
+    private static boolean continues(String sourcePath, long sourceOffset, long size, long modified,
+                                     long checksum) throws IOException
+    {
+        if (sourceOffset == 0 || sourcePath == null)
+            return true;
+
+        Path source = Paths.get(sourcePath);
+        try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ))
+        {
+            long current = channel.size();
+            if (current == size && Files.getLastModifiedTime(source).toMillis() == modified)
+                return true;
+            return current >= sourceOffset && checksum(channel, sourceOffset) == checksum;
+        }
+        catch (NoSuchFileException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Computes the CRC32C of the first bytes of a file.
+     *
+     * @param channel The open file
+     * @param length The number of bytes to check
+     * @return The checksum
+     * @throws IOException If the file cannot be read
+     */
+    private static long checksum(FileChannel channel, long length) throws IOException
+    {
+        CRC32C crc = new CRC32C();
+        for (long pos = 0; pos < length; )
+        {
+            int len = (int) Math.min(1 << 26, length - pos);
+            crc.update(channel.map(FileChannel.MapMode.READ_ONLY, pos, len));
+            pos += len;
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Writes one node record.
+     *
+     * @param out The stream to write to
+     * @param node The node to write
+     * @throws IOException If the record cannot be written
+     */
+    private static void writeNode(DataOutputStream out, BTNode<Entry> node) throws IOException
+    {
+        out.writeByte(node.height);
+        writeString(out, node.data.term);
+        writeString(out, node.data.tree);
+        out.writeDouble(node.data.confidence);
+
+        int statements = node.data.statementCount();
+        out.writeInt(statements - 1);
+        for (int i = 1; i < statements; i++)
+        {
+            writeString(out, node.data.treeAt(i));
+            out.writeDouble(node.data.confidenceAt(i));
+        }
+    }
+
+    /**
+     * Writes a length-prefixed UTF-8 string.
+     *
+     * @param out The stream to write to
+     * @param s The string to write
+     * @throws IOException If the string cannot be written
+     */
+    private static void writeString(DataOutputStream out, String s) throws IOException
+    {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Rebuilds the tree from in-order node records. Each node adopts the run
+     * of shorter nodes just before it as its left subtree and becomes the
+     * right child of the nearest taller node, which restores the original
+     * shape in linear time.
+     *
+     * @param buf The snapshot, positioned at the first record
+     * @param count The number of records
+     * @return The root of the rebuilt tree
+     */
+    private static BTNode<Entry> readTree(ByteBuffer buf, int count)
+    {
+        Deque<BTNode<Entry>> stack = new ArrayDeque<>();
+        byte[] scratch = new byte[256];
+
+        for (int i = 0; i < count; i++)
+        {
+            int height = buf.get();
+            String term = readString(buf, scratch);
+            String tree = readString(buf, scratch);
+            double confidence = buf.getDouble();
+
+            Entry entry = new Entry(term, tree, confidence);
+            int extra = buf.getInt();
+            if (extra > 0)
+            {
+                String[] trees = new String[extra + 1];
+                double[] confidences = new double[extra + 1];
+                trees[0] = tree;
+                confidences[0] = confidence;
+                for (int j = 1; j <= extra; j++)
+                {
+                    trees[j] = readString(buf, scratch);
+                    confidences[j] = buf.getDouble();
+                }
+                entry.statements = new StatementList(trees, confidences);
+            }
+
+            BTNode<Entry> node = new BTNode<Entry>(entry);
+            node.height = height;
+
+            BTNode<Entry> last = null;
+            while (!stack.isEmpty() && stack.peek().height < height)
+                last = finish(stack.pop());
+            node.left = last;
+            if (!stack.isEmpty())
+                stack.peek().right = node;
+            stack.push(node);
+        }
+
+        BTNode<Entry> root = null;
+        while (!stack.isEmpty())
+            root = finish(stack.pop());
+        return root;
+    }
+
+    /**
+     * Sets the subtree size of a node whose children are already complete.
+     *
+     * @param node The node to finish
+     * @return The node
+     */
+    private static BTNode<Entry> finish(BTNode<Entry> node)
+    {
+        node.size = 1 + (node.left == null ? 0 : node.left.size) + (node.right == null ? 0 : node.right.size);
+        return node;
+    }
+
+    /**
+     * Reads a length-prefixed UTF-8 string.
+     *
+     * @param buf The buffer to read from
+     * @param scratch A reusable buffer for the bytes
+     * @return The decoded string
+     */
+    private static String readString(ByteBuffer buf, byte[] scratch)
+    {
+        int len = buf.getInt();
+        byte[] bytes = len <= scratch.length ? scratch : new byte[len];
+        buf.get(bytes, 0, len);
+        return new String(bytes, 0, len, StandardCharsets.UTF_8);
+    }
+}
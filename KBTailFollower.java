@@ -0,0 +1,182 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * KBTailFollower follows a GenericsKB file that is being appended to. It
+ * remembers the byte offset it has read up to, and each poll parses only the
+ * complete lines added since then and passes them on in batches, so the cost
+ * of catching up depends on how much was appended rather than on the size of
+ * the file. A line without its newline yet is left for the next poll.
+ *
+ * AVLTreeDatabase.readAppended keeps one of these, moved to where the
+ * tree's last whole-file load stopped.
+ *
+ * The sink is called on the polling thread. For queries to continue while
+ * batches are inserted, the sink must synchronise with the readers.
+ */
+public class KBTailFollower implements AutoCloseable
+{
+    private final String path;
+    private final Consumer<List<Entry>> sink;
+    private final int batchSize;
+    private final LineOffsetIndex lineIndex = new LineOffsetIndex();
+
+    private long position = 0;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Constructs a follower that starts at the beginning of the file.
+     *
+     * @param path The path to the knowledge base file
+     * @param sink Receives each batch of new entries, in file order
+     * @param batchSize The maximum number of entries passed to the sink at once
+     */
+    public KBTailFollower(String path, Consumer<List<Entry>> sink, int batchSize)
+    {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+
+        this.path = path;
+        this.sink = sink;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Reads the complete lines appended since the last poll and passes their
+     * entries to the sink. If the file has shrunk, it is assumed to have been
+     * replaced and is read again from the start.
+     *
+     * @return The number of entries read
+     * @throws IOException If the file cannot be read
+     */
+    public synchronized int poll() throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ))
+        {
+            long size = channel.size();
+            if (size < position)
+                position = 0;
+
+            long end = KBFileReader.lastLineEnd(channel, position, size);
+            if (end == position)
+                return 0;
+
+            List<Entry> batch = new ArrayList<>(batchSize);
+            int[] count = {0};
+            KBFileReader.forEachEntry(channel, position, end, entry -> {
+                batch.add(entry);
+                count[0]++;
+                if (batch.size() == batchSize)
+                {
+                    sink.accept(new ArrayList<>(batch));
+                    batch.clear();
+                }
+            });
+            if (!batch.isEmpty())
+                sink.accept(batch);
+
+            position = end;
+            return count[0];
+        }
+    }
+
+    /**
+     * Moves to a byte offset. If the offset is in the middle of a line, the
+     * follower moves on to the start of the next line. If it is past the end
+     * of the file, the file is assumed to have been replaced, as in poll,
+     * and the follower moves back to the start.
+     *
+     * @param offset The byte offset to continue from
+     * @throws IOException If the file cannot be read
+     */
+    public synchronized void seek(long offset) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ))
+        {
+            if (offset > channel.size())
+                offset = 0;
+            position = KBFileReader.nextLineStart(channel, Math.max(0, offset));
+        }
+    }
+
+    /**
+     * Moves to the start of a line, using a sparse line index so that
+     * fewer than LineOffsetIndex.INTERVAL lines are skipped byte by byte.
+     * Seeking past the last complete line moves to the end of the complete
+     * lines.
+     *
+     * @param line The 1-based line to continue from
+     * @throws IOException If the file cannot be read
+     */
+    public synchronized void seekToLine(long line) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ))
+        {
+            lineIndex.extend(Paths.get(path), channel, line);
+            long[] checkpoint = lineIndex.seek(line);
+            long offset = checkpoint[0];
+            long end = KBFileReader.lastLineEnd(channel, offset, channel.size());
+            for (long n = checkpoint[1]; n < line && offset < end; n++)
+                offset = KBFileReader.nextLineStart(channel, offset + 1);
+            position = Math.min(offset, end);
+        }
+    }
+
+    /**
+     * Gets the byte offset the next poll will read from.
+     *
+     * @return The current byte offset
+     */
+    public synchronized long getPosition()
+    {
+        return position;
+    }
+
+    /**
+     * Starts polling the file in the background at a fixed interval.
+     *
+     * @param periodMillis The time between polls in milliseconds
+     */
+    public synchronized void start(long periodMillis)
+    {
+        if (scheduler != null)
+            return;
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "kb-tail-follower");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try
+            {
+                poll();
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }, 0, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops background polling, if it was started.
+     */
+    @Override
+    public synchronized void close()
+    {
+        if (scheduler != null)
+        {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+}
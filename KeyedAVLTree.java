@@ -0,0 +1,758 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+
+/**
+ * KeyedAVLTree is an AVL tree of values of any type, ordered by a key taken
+ * from each value with a key extractor and compared with a comparator. The
+ * key is taken from the value whenever it is compared, so the extractor
+ * should be cheap, such as reading a field.
+ *
+ * It is the engine behind AVLTreeDatabase, which keeps its own root and
+ * passes it to the package-private methods that take a subtree, and it can
+ * hold other data sets too, such as TSV files keyed by something other
+ * than a term. For int, long and double keys IntKeyedAVLTree,
+ * LongKeyedAVLTree and DoubleKeyedAVLTree avoid boxing the keys and the
+ * comparator call.
+ *
+ * Every node records its height and the size of its subtree, so besides
+ * lookups the tree answers rank, select and range counts in O(log n).
+ * Comparisons are counted as AVLTreeDatabase always has: a search counts one
+ * per node, and an insert counts one for the less-than test at each node and
+ * one more when that fails.
+ *
+ * @param <K> The type of the keys
+ * @param <V> The type of the values
+ */
+public class KeyedAVLTree<K, V> implements Iterable<V>
+{
+    public long searchComparisonCount = 0;
+    public long insertComparisonCount = 0;
+
+    private final Function<? super V, ? extends K> keyOf;
+    private final Comparator<? super K> comparator;
+
+    private BTNode<V> root;
+    private TreeMetrics metrics;
+
+    // Search path reused by insert; an AVL tree of 2^31 nodes is under 64 levels deep
+    @SuppressWarnings("unchecked")
+    private final BTNode<V>[] insertPath = (BTNode<V>[]) new BTNode<?>[64];
+
+    /**
+     * Constructs an empty tree.
+     *
+     * @param keyOf Extracts the key from a value
+     * @param comparator Orders the keys
+     */
+    public KeyedAVLTree(Function<? super V, ? extends K> keyOf, Comparator<? super K> comparator)
+    {
+        this.keyOf = keyOf;
+        this.comparator = comparator;
+    }
+
+    /**
+     * Constructs an empty tree ordered by the keys' natural order.
+     *
+     * @param keyOf Extracts the key from a value
+     * @param <K> The type of the keys
+     * @param <V> The type of the values
+     * @return The tree
+     */
+    public static <K extends Comparable<? super K>, V> KeyedAVLTree<K, V> naturalOrder(
+            Function<? super V, ? extends K> keyOf)
+    {
+        return new KeyedAVLTree<>(keyOf, Comparator.naturalOrder());
+    }
+
+    /**
+     * Returns the number of values in the tree.
+     *
+     * @return The number of values
+     */
+    public int size()
+    {
+        return size(root);
+    }
+
+    /**
+     * Returns the height of the tree.
+     *
+     * @return The height, or -1 if the tree is empty
+     */
+    public int height()
+    {
+        return height(root);
+    }
+
+    /**
+     * Inserts a value. If a value with an equal key is already present the
+     * existing value is kept.
+     *
+     * @param value The value to insert
+     * @return true if the value was added
+     */
+    public boolean insert(V value)
+    {
+        return insert(value, null);
+    }
+
+    /**
+     * Inserts a value. If a value with an equal key is already present it is
+     * replaced by merge.apply(existing, value), which must have the same key.
+     *
+     * The search path is recorded on an explicit stack and then rebalanced
+     * bottom-up, stopping as soon as a subtree's height is unchanged, since
+     * nothing above it can change.
+     *
+     * @param value The value to insert
+     * @param merge Combines an existing value with the new one, or null to
+     *        keep the existing value
+     * @return true if the value was added, false if its key was present
+     */
+    public boolean insert(V value, BinaryOperator<V> merge)
+    {
+        int before = size(root);
+        root = insert(value, root, merge);
+        return size(root) != before;
+    }
+
+    /**
+     * Inserts a value into a subtree, as insert(value, merge) does.
+     *
+     * @param value The value to insert
+     * @param node The root of the subtree
+     * @param merge Combines an existing value with the new one, or null to
+     *        keep the existing value
+     * @return The new root of the subtree
+     */
+    BTNode<V> insert(V value, BTNode<V> node, BinaryOperator<V> merge)
+    {
+        if (node == null)
+            return new BTNode<V>(value);
+
+        K key = keyOf.apply(value);
+        BTNode<V>[] path = insertPath;
+        long wentRight = 0;
+        int depth = 0;
+
+        BTNode<V> current = node;
+        while (current != null)
+        {
+            path[depth] = current;
+            insertComparisonCount++;
+            int cmp = comparator.compare(key, keyOf.apply(current.data));
+            if (cmp < 0)
+                current = current.left;
+            else
+            {
+                insertComparisonCount++;
+                if (cmp > 0)
+                {
+                    wentRight |= 1L << depth;
+                    current = current.right;
+                }
+                else
+                {
+                    Arrays.fill(path, 0, depth + 1, null);
+                    if (merge != null)
+                        current.data = merge.apply(current.data, value);
+                    return node;
+                }
+            }
+            depth++;
+        }
+
+        BTNode<V> child = new BTNode<V>(value);
+        for (int i = depth - 1; i >= 0; i--)
+        {
+            BTNode<V> parent = path[i];
+            if ((wentRight & (1L << i)) != 0)
+                parent.right = child;
+            else
+                parent.left = child;
+
+            int oldHeight = parent.height;
+            child = balance(parent);
+            path[i] = null;
+
+            if (child.height == oldHeight)
+            {
+                // Heights above are unchanged; at most the link to this subtree
+                // moved, and each ancestor now holds one more node
+                if (i == 0)
+                    return child;
+                if (child != parent)
+                {
+                    if ((wentRight & (1L << (i - 1))) != 0)
+                        path[i - 1].right = child;
+                    else
+                        path[i - 1].left = child;
+                }
+                for (int j = i - 1; j >= 0; j--)
+                {
+                    path[j].size++;
+                    path[j] = null;
+                }
+                return node;
+            }
+        }
+
+        return child;
+    }
+
+    /**
+     * Replaces the contents of the tree with its current values plus the
+     * given ones, building a perfectly balanced tree in linear time after
+     * sorting instead of inserting one by one. Values already in the tree
+     * come before the new ones, which are taken in array order, and every
+     * later value with an equal key is folded into the first with merge.
+     *
+     * @param values The values to add
+     * @param merge Combines an earlier value with a later one, or null to
+     *        keep the earlier value
+     */
+    public void bulkLoad(V[] values, BinaryOperator<V> merge)
+    {
+        root = bulkLoad(root, values, merge);
+    }
+
+    /**
+     * Builds a balanced tree from a subtree's values plus the given ones, as
+     * bulkLoad(values, merge) does.
+     *
+     * @param node The root of the subtree
+     * @param values The values to add
+     * @param merge Combines an earlier value with a later one, or null to
+     *        keep the earlier value
+     * @return The root of the new tree
+     */
+    BTNode<V> bulkLoad(BTNode<V> node, V[] values, BinaryOperator<V> merge)
+    {
+        int existing = size(node);
+        V[] all = Arrays.copyOf(values, existing + values.length);
+        System.arraycopy(values, 0, all, existing, values.length);
+        Iterator<V> it = new InOrderIterator(node, null, null);
+        for (int i = 0; i < existing; i++)
+            all[i] = it.next();
+
+        // The sort is stable, so earlier values stay first among equal keys
+        Arrays.parallelSort(all, (a, b) -> comparator.compare(keyOf.apply(a), keyOf.apply(b)));
+
+        int unique = 0;
+        for (int i = 0; i < all.length; i++)
+        {
+            if (unique == 0 || comparator.compare(keyOf.apply(all[i]), keyOf.apply(all[unique - 1])) != 0)
+                all[unique++] = all[i];
+            else if (merge != null)
+                all[unique - 1] = merge.apply(all[unique - 1], all[i]);
+        }
+
+        return buildBalanced(all, 0, unique - 1);
+    }
+
+    /**
+     * Recursively builds a balanced subtree from a sorted, duplicate-free range.
+     *
+     * @param sorted The sorted values
+     * @param lo The first index of the range (inclusive)
+     * @param hi The last index of the range (inclusive)
+     * @return The root of the subtree, or null if the range is empty
+     */
+    private BTNode<V> buildBalanced(V[] sorted, int lo, int hi)
+    {
+        if (lo > hi)
+            return null;
+
+        int mid = (lo + hi) >>> 1;
+        BTNode<V> node = new BTNode<V>(sorted[mid]);
+        node.left = buildBalanced(sorted, lo, mid - 1);
+        node.right = buildBalanced(sorted, mid + 1, hi);
+        fixHeight(node);
+        fixSize(node);
+        return node;
+    }
+
+    /**
+     * Finds the value with a key.
+     *
+     * @param key The key to search for
+     * @return The value if found, null otherwise
+     */
+    public V find(K key)
+    {
+        BTNode<V> node = root;
+        while (node != null)
+        {
+            searchComparisonCount++;
+            int cmp = comparator.compare(key, keyOf.apply(node.data));
+            if (cmp < 0)
+                node = node.left;
+            else if (cmp > 0)
+                node = node.right;
+            else
+                return node.data;
+        }
+        return null;
+    }
+
+    /**
+     * Checks whether a value with a key is present.
+     *
+     * @param key The key to search for
+     * @return true if the key is present
+     */
+    public boolean contains(K key)
+    {
+        return find(key) != null;
+    }
+
+    /**
+     * Counts the values whose keys are less than the given key. If the key
+     * is in the tree this is its 0-based position in key order.
+     *
+     * @param key The key to rank
+     * @return The number of values with smaller keys
+     */
+    public int rank(K key)
+    {
+        return rank(root, key);
+    }
+
+    /**
+     * Counts the values in a subtree whose keys are less than the given key.
+     *
+     * @param node The root of the subtree
+     * @param key The key to rank
+     * @return The number of values with smaller keys
+     */
+    int rank(BTNode<V> node, K key)
+    {
+        int rank = 0;
+        while (node != null)
+        {
+            int cmp = comparator.compare(key, keyOf.apply(node.data));
+            if (cmp < 0)
+                node = node.left;
+            else
+            {
+                int leftSize = size(node.left);
+                if (cmp == 0)
+                    return rank + leftSize;
+                rank += leftSize + 1;
+                node = node.right;
+            }
+        }
+        return rank;
+    }
+
+    /**
+     * Returns the value at a 0-based position in key order.
+     *
+     * @param k The position of the value
+     * @return The k-th smallest value, or null if k is out of range
+     */
+    public V select(int k)
+    {
+        return select(root, k);
+    }
+
+    /**
+     * Returns the value at a 0-based position in a subtree.
+     *
+     * @param node The root of the subtree
+     * @param k The position of the value
+     * @return The k-th smallest value, or null if k is out of range
+     */
+    V select(BTNode<V> node, int k)
+    {
+        while (node != null)
+        {
+            int leftSize = size(node.left);
+            if (k < leftSize)
+                node = node.left;
+            else if (k > leftSize)
+            {
+                k -= leftSize + 1;
+                node = node.right;
+            }
+            else
+                return node.data;
+        }
+        return null;
+    }
+
+    /**
+     * Counts the values whose keys lie in [from, to).
+     *
+     * @param from The first key to include, or null to start at the beginning
+     * @param to The first key to exclude, or null to run to the end
+     * @return The number of values in the range
+     */
+    public int countRange(K from, K to)
+    {
+        return countRange(root, from, to);
+    }
+
+    /**
+     * Counts the values in a subtree whose keys lie in [from, to).
+     *
+     * @param node The root of the subtree
+     * @param from The first key to include, or null to start at the beginning
+     * @param to The first key to exclude, or null to run to the end
+     * @return The number of values in the range
+     */
+    int countRange(BTNode<V> node, K from, K to)
+    {
+        int lo = from == null ? 0 : rank(node, from);
+        int hi = to == null ? size(node) : rank(node, to);
+        return Math.max(0, hi - lo);
+    }
+
+    /**
+     * Reads a file line by line and inserts a value parsed from each line.
+     *
+     * @param path The path to the file
+     * @param parser Turns a line into a value, or null to skip the line
+     */
+    public void readFile(String path, Function<String, ? extends V> parser)
+    {
+        try
+        {
+            KBFileReader.forEachLine(path, line -> {
+                V value = parser.apply(line);
+                if (value != null)
+                    insert(value);
+            });
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Returns an iterator over the values in key order.
+     *
+     * @return A lazy in-order iterator
+     */
+    @Override
+    public Iterator<V> iterator()
+    {
+        return new InOrderIterator(root, null, null);
+    }
+
+    /**
+     * Returns an iterator over the values whose keys lie in [from, to), in
+     * key order. Reaching the first value costs O(log n) and each further
+     * value is amortised O(1). The tree must not be modified during
+     * iteration.
+     *
+     * @param from The first key to include, or null to start at the beginning
+     * @param to The first key to exclude, or null to run to the end
+     * @return A lazy in-order iterator
+     */
+    public Iterator<V> iterator(K from, K to)
+    {
+        return new InOrderIterator(root, from, to);
+    }
+
+    /**
+     * Returns an iterator over the values in a subtree whose keys lie in
+     * [from, to), in key order.
+     *
+     * @param node The root of the subtree
+     * @param from The first key to include, or null to start at the beginning
+     * @param to The first key to exclude, or null to run to the end
+     * @return A lazy in-order iterator
+     */
+    Iterator<V> iterator(BTNode<V> node, K from, K to)
+    {
+        return new InOrderIterator(node, from, to);
+    }
+
+    /**
+     * Returns the values in key order.
+     *
+     * @return A list of every value
+     */
+    public List<V> toList()
+    {
+        List<V> values = new ArrayList<>(size());
+        iterator().forEachRemaining(values::add);
+        return values;
+    }
+
+    /**
+     * Counts rebalancing rotations into the given metrics.
+     *
+     * @param metrics The metrics to record into, or null to stop counting
+     */
+    void setMetrics(TreeMetrics metrics)
+    {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Performs a left rotation on the given node.
+     *
+     * @param q The node to rotate
+     * @return The new root of the rotated subtree
+     */
+    BTNode<V> rotateLeft(BTNode<V> q)
+    {
+        BTNode<V> p = q.right;
+        q.right = p.left;
+        p.left = q;
+        fixHeight(q);
+        fixHeight(p);
+        fixSize(q);
+        fixSize(p);
+        return p;
+    }
+
+    /**
+     * Performs a right rotation on the given node.
+     *
+     * @param p The node to rotate
+     * @return The new root of the rotated subtree
+     */
+    BTNode<V> rotateRight(BTNode<V> p)
+    {
+        BTNode<V> q = p.left;
+        p.left = q.right;
+        q.right = p;
+        fixHeight(p);
+        fixHeight(q);
+        fixSize(p);
+        fixSize(q);
+        return q;
+    }
+
+    /**
+     * Balances the tree at the given node.
+     *
+     * @param node The node to balance
+     * @return The new root of the balanced subtree
+     */
+    BTNode<V> balance(BTNode<V> node)
+    {
+        fixHeight(node);
+        fixSize(node);
+
+        if (balanceFactor(node) == 2)
+        {
+            if (balanceFactor(node.right) < 0)
+            {
+                node.right = rotateRight(node.right);
+                countRotation(TreeMetrics.Rotation.RIGHT_LEFT);
+            }
+            else
+                countRotation(TreeMetrics.Rotation.LEFT);
+            return rotateLeft(node);
+        }
+
+        if (balanceFactor(node) == -2)
+        {
+            if (balanceFactor(node.left) > 0)
+            {
+                node.left = rotateLeft(node.left);
+                countRotation(TreeMetrics.Rotation.LEFT_RIGHT);
+            }
+            else
+                countRotation(TreeMetrics.Rotation.RIGHT);
+            return rotateRight(node);
+        }
+
+        return node;
+    }
+
+    /**
+     * Counts a rebalancing rotation, if metrics are enabled.
+     *
+     * @param rotation The kind of rotation
+     */
+    private void countRotation(TreeMetrics.Rotation rotation)
+    {
+        if (metrics != null)
+            metrics.rotations[rotation.ordinal()]++;
+    }
+
+    /**
+     * Calculates the balance factor of a node.
+     *
+     * @param node The node to calculate the balance factor for
+     * @return The balance factor
+     */
+    int balanceFactor(BTNode<V> node)
+    {
+        return height(node.right) - height(node.left);
+    }
+
+    /**
+     * Updates the height of a node.
+     *
+     * @param node The node to update the height for
+     */
+    void fixHeight(BTNode<V> node)
+    {
+        int hl = height(node.left);
+        int hr = height(node.right);
+        node.height = (hl > hr ? hl : hr) + 1;
+    }
+
+    /**
+     * Updates the subtree size of a node.
+     *
+     * @param node The node to update the size for
+     */
+    void fixSize(BTNode<V> node)
+    {
+        node.size = size(node.left) + size(node.right) + 1;
+    }
+
+    /**
+     * Returns the height of a node.
+     *
+     * @param node The node to get the height of
+     * @return The height of the node, or -1 if the node is null
+     */
+    int height(BTNode<V> node)
+    {
+        return node == null ? -1 : node.height;
+    }
+
+    /**
+     * Returns the number of nodes in a subtree.
+     *
+     * @param node The root of the subtree
+     * @return The number of nodes, or 0 if the node is null
+     */
+    int size(BTNode<V> node)
+    {
+        return node == null ? 0 : node.size;
+    }
+
+    /**
+     * Resets the comparison counters for both search and insert operations.
+     */
+    public void resetCounters()
+    {
+        searchComparisonCount = 0;
+        insertComparisonCount = 0;
+    }
+
+    /**
+     * Gets the number of comparisons made by inserts.
+     *
+     * @return The count of insert comparisons
+     */
+    public long getInsertComparisons()
+    {
+        return insertComparisonCount;
+    }
+
+    /**
+     * Gets the number of comparisons made by searches.
+     *
+     * @return The count of search comparisons
+     */
+    public long getSearchComparisons()
+    {
+        return searchComparisonCount;
+    }
+
+    /**
+     * Prints instrumentation data about the tree operations
+     */
+    public void printInstrumentation()
+    {
+        System.out.println("\nKey comparisons by search: " + searchComparisonCount);
+        System.out.println("Key comparisons by insert: " + insertComparisonCount);
+    }
+
+    /**
+     * Walks the tree in key order between two bounds, keeping the pending
+     * path on an explicit stack.
+     */
+    private final class InOrderIterator implements Iterator<V>
+    {
+        private final Deque<BTNode<V>> stack = new ArrayDeque<>();
+        private final K to;
+        private V next;
+
+        /**
+         * Constructs an iterator over the values in a subtree whose keys lie
+         * in [from, to).
+         *
+         * @param node The root of the subtree to walk
+         * @param from The first key to include, or null to start at the beginning
+         * @param to The first key to exclude, or null to run to the end
+         */
+        InOrderIterator(BTNode<V> node, K from, K to)
+        {
+            this.to = to;
+
+            while (node != null)
+            {
+                if (from == null || comparator.compare(keyOf.apply(node.data), from) >= 0)
+                {
+                    stack.push(node);
+                    node = node.left;
+                }
+                else
+                    node = node.right;
+            }
+
+            advance();
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return next != null;
+        }
+
+        @Override
+        public V next()
+        {
+            if (next == null)
+                throw new NoSuchElementException();
+
+            V result = next;
+            advance();
+            return result;
+        }
+
+        /**
+         * Moves to the next in-order value, or ends the iteration if it
+         * falls outside the bounds.
+         */
+        private void advance()
+        {
+            next = null;
+            if (stack.isEmpty())
+                return;
+
+            BTNode<V> node = stack.pop();
+            for (BTNode<V> child = node.right; child != null; child = child.left)
+                stack.push(child);
+
+            if (to != null && comparator.compare(keyOf.apply(node.data), to) >= 0)
+            {
+                stack.clear();
+                return;
+            }
+
+            next = node.data;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * LineOffsetIndex is a sparse index from line numbers to byte offsets in a
+ * file. It records the offset of every INTERVAL-th line, so any line can be
+ * reached by jumping to the nearest checkpoint and skipping at most
+ * INTERVAL - 1 lines. The index only covers complete (newline-terminated)
+ * lines, and is extended lazily, only as far as the lines asked for.
+ *
+ * The index belongs to the file as it was when indexing started, recorded
+ * by its size and modification time. If either changes the file may have
+ * been replaced, even by one of the same size or larger, so the index is
+ * rebuilt from the start.
+ */
+class LineOffsetIndex
+{
+    static final int INTERVAL = 1024;
+
+    // checkpoints[i] is the offset of line i * INTERVAL + 1 (lines are 1-based)
+    private long[] checkpoints = new long[16];
+    private int checkpointCount = 1;
+    private long indexedLines = 0;
+    private long indexedBytes = 0;
+    private long fileSize = -1;
+    private long fileModified;
+
+    /**
+     * Indexes complete lines until the checkpoint that seek(line) returns
+     * is the nearest one to the line, or the file ends. If the file's size
+     * or modification time has changed since the index was started, the
+     * index is rebuilt from the start.
+     *
+     * @param path The path of the file
+     * @param channel The file, open for reading
+     * @param line The 1-based line that will be sought
+     * @throws IOException If the file cannot be read
+     */
+    void extend(Path path, FileChannel channel, long line) throws IOException
+    {
+        long size = channel.size();
+        long modified = Files.getLastModifiedTime(path).toMillis();
+        if (size != fileSize || modified != fileModified)
+        {
+            reset();
+            fileSize = size;
+            fileModified = modified;
+        }
+
+        long target = Math.max(0, (line - 1) / INTERVAL) * INTERVAL;
+        long pos = indexedBytes;
+        while (pos < size && indexedLines < target)
+        {
+            int len = (int) Math.min(1 << 26, size - pos);
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, pos, len);
+            for (int i = 0; i < len && indexedLines < target; i++)
+            {
+                if (buf.get(i) != '\n')
+                    continue;
+
+                indexedLines++;
+                indexedBytes = pos + i + 1;
+                if (indexedLines % INTERVAL == 0)
+                    addCheckpoint(indexedBytes);
+            }
+            pos += len;
+        }
+    }
+
+    /**
+     * Finds the nearest indexed line at or before the given line.
+     *
+     * @param line The 1-based line wanted
+     * @return A pair {byte offset, line number} of the checkpoint
+     */
+    long[] seek(long line)
+    {
+        long slot = Math.max(0, (line - 1) / INTERVAL);
+        slot = Math.min(slot, checkpointCount - 1);
+        return new long[] {checkpoints[(int) slot], slot * INTERVAL + 1};
+    }
+
+    /**
+     * Forgets everything indexed so far.
+     */
+    void reset()
+    {
+        checkpointCount = 1;
+        indexedLines = 0;
+        indexedBytes = 0;
+        fileSize = -1;
+    }
+
+    /**
+     * Records the offset of the line that starts a new interval.
+     *
+     * @param offset The byte offset of the line
+     */
+    private void addCheckpoint(long offset)
+    {
+        if (checkpointCount == checkpoints.length)
+            checkpoints = Arrays.copyOf(checkpoints, checkpointCount * 2);
+        checkpoints[checkpointCount++] = offset;
+    }
+}
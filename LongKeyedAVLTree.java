@@ -0,0 +1,394 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * LongKeyedAVLTree is an AVL tree of values of any type ordered by a long key
+ * taken from each value. As in ArrayAVLTreeDatabase, nodes are int indices
+ * and the keys, links and heights live in primitive arrays, so a search
+ * compares longs read from one array with no boxing and no comparator call.
+ *
+ * IntKeyedAVLTree and DoubleKeyedAVLTree store their keys in this tree,
+ * mapped to longs in the same order.
+ *
+ * @param <V> The type of the values
+ */
+public class LongKeyedAVLTree<V> implements Iterable<V>
+{
+    private static final int NIL = -1;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    public long searchComparisonCount = 0;
+    public long insertComparisonCount = 0;
+
+    private final ToLongFunction<? super V> keyOf;
+
+    private int root = NIL;
+    private int size = 0;
+    private boolean inserted;
+
+    private long[] keys = new long[INITIAL_CAPACITY];
+    private Object[] values = new Object[INITIAL_CAPACITY];
+    private int[] left = new int[INITIAL_CAPACITY];
+    private int[] right = new int[INITIAL_CAPACITY];
+    private byte[] height = new byte[INITIAL_CAPACITY];
+
+    /**
+     * Constructs an empty tree.
+     *
+     * @param keyOf Extracts the key from a value
+     */
+    public LongKeyedAVLTree(ToLongFunction<? super V> keyOf)
+    {
+        this.keyOf = keyOf;
+    }
+
+    /**
+     * Returns the number of values in the tree.
+     *
+     * @return The number of values
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the height of the tree.
+     *
+     * @return The height, or -1 if the tree is empty
+     */
+    public int height()
+    {
+        return height(root);
+    }
+
+    /**
+     * Inserts a value. If a value with the same key is already present the
+     * existing value is kept.
+     *
+     * @param value The value to insert
+     * @return true if the value was added
+     */
+    public boolean insert(V value)
+    {
+        inserted = false;
+        root = insert(keyOf.applyAsLong(value), value, root);
+        return inserted;
+    }
+
+    /**
+     * Recursive helper method to insert a value below a node.
+     *
+     * @param key The key of the value
+     * @param value The value to insert
+     * @param node The current node in the recursion
+     * @return The new root of the subtree after insertion and balancing
+     */
+    private int insert(long key, V value, int node)
+    {
+        if (node == NIL)
+        {
+            inserted = true;
+            return newNode(key, value);
+        }
+
+        // The child is computed before the store because the recursive call
+        // may grow (and so replace) the link arrays.
+        insertComparisonCount++;
+        long k = keys[node];
+        if (key < k)
+        {
+            int child = insert(key, value, left[node]);
+            left[node] = child;
+        }
+        else if (key > k)
+        {
+            int child = insert(key, value, right[node]);
+            right[node] = child;
+        }
+        else
+            return node;
+
+        return balance(node);
+    }
+
+    /**
+     * Finds the value with a key.
+     *
+     * @param key The key to search for
+     * @return The value if found, null otherwise
+     */
+    public V find(long key)
+    {
+        int node = root;
+        while (node != NIL)
+        {
+            searchComparisonCount++;
+            long k = keys[node];
+            if (key < k)
+                node = left[node];
+            else if (key > k)
+                node = right[node];
+            else
+                return value(node);
+        }
+        return null;
+    }
+
+    /**
+     * Checks whether a value with a key is present.
+     *
+     * @param key The key to search for
+     * @return true if the key is present
+     */
+    public boolean contains(long key)
+    {
+        return find(key) != null;
+    }
+
+    /**
+     * Reads a file line by line and inserts a value parsed from each line.
+     *
+     * @param path The path to the file
+     * @param parser Turns a line into a value, or null to skip the line
+     */
+    public void readFile(String path, Function<String, ? extends V> parser)
+    {
+        try
+        {
+            KBFileReader.forEachLine(path, line -> {
+                V value = parser.apply(line);
+                if (value != null)
+                    insert(value);
+            });
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Returns an iterator over the values in key order.
+     *
+     * @return A lazy in-order iterator
+     */
+    @Override
+    public Iterator<V> iterator()
+    {
+        return new Iterator<V>()
+        {
+            // An AVL tree of 2^31 nodes is under 64 levels deep
+            private final int[] path = new int[64];
+            private int depth = 0;
+
+            {
+                descend(root);
+            }
+
+            private void descend(int node)
+            {
+                for (; node != NIL; node = left[node])
+                    path[depth++] = node;
+            }
+
+            @Override
+            public boolean hasNext()
+            {
+                return depth > 0;
+            }
+
+            @Override
+            public V next()
+            {
+                if (depth == 0)
+                    throw new NoSuchElementException();
+                int node = path[--depth];
+                descend(right[node]);
+                return value(node);
+            }
+        };
+    }
+
+    /**
+     * Returns the value stored at a node. Only insert stores values, and
+     * only of type V.
+     *
+     * @param node The index of the node
+     * @return The value
+     */
+    @SuppressWarnings("unchecked")
+    private V value(int node)
+    {
+        return (V) values[node];
+    }
+
+    /**
+     * Allocates a new leaf node.
+     *
+     * @param key The key of the value
+     * @param value The value to store
+     * @return The index of the new node
+     */
+    private int newNode(long key, V value)
+    {
+        if (size == keys.length)
+            grow();
+
+        int node = size++;
+        keys[node] = key;
+        values[node] = value;
+        left[node] = NIL;
+        right[node] = NIL;
+        height[node] = 0;
+        return node;
+    }
+
+    /**
+     * Doubles the capacity of the per-node arrays.
+     */
+    private void grow()
+    {
+        int capacity = keys.length * 2;
+        keys = Arrays.copyOf(keys, capacity);
+        values = Arrays.copyOf(values, capacity);
+        left = Arrays.copyOf(left, capacity);
+        right = Arrays.copyOf(right, capacity);
+        height = Arrays.copyOf(height, capacity);
+    }
+
+    /**
+     * Performs a left rotation on the given node.
+     *
+     * @param q The node to rotate
+     * @return The new root of the rotated subtree
+     */
+    private int rotateLeft(int q)
+    {
+        int p = right[q];
+        right[q] = left[p];
+        left[p] = q;
+        fixHeight(q);
+        fixHeight(p);
+        return p;
+    }
+
+    /**
+     * Performs a right rotation on the given node.
+     *
+     * @param p The node to rotate
+     * @return The new root of the rotated subtree
+     */
+    private int rotateRight(int p)
+    {
+        int q = left[p];
+        left[p] = right[q];
+        right[q] = p;
+        fixHeight(p);
+        fixHeight(q);
+        return q;
+    }
+
+    /**
+     * Balances the tree at the given node.
+     *
+     * @param node The node to balance
+     * @return The new root of the balanced subtree
+     */
+    private int balance(int node)
+    {
+        fixHeight(node);
+
+        if (balanceFactor(node) == 2)
+        {
+            if (balanceFactor(right[node]) < 0)
+                right[node] = rotateRight(right[node]);
+            return rotateLeft(node);
+        }
+
+        if (balanceFactor(node) == -2)
+        {
+            if (balanceFactor(left[node]) > 0)
+                left[node] = rotateLeft(left[node]);
+            return rotateRight(node);
+        }
+
+        return node;
+    }
+
+    /**
+     * Calculates the balance factor of a node.
+     *
+     * @param node The node to calculate the balance factor for
+     * @return The balance factor
+     */
+    private int balanceFactor(int node)
+    {
+        return height(right[node]) - height(left[node]);
+    }
+
+    /**
+     * Updates the height of a node.
+     *
+     * @param node The node to update the height for
+     */
+    private void fixHeight(int node)
+    {
+        int hl = height(left[node]);
+        int hr = height(right[node]);
+        height[node] = (byte) ((hl > hr ? hl : hr) + 1);
+    }
+
+    /**
+     * Returns the height of a node.
+     *
+     * @param node The node to get the height of
+     * @return The height of the node, or -1 if the node is NIL
+     */
+    private int height(int node)
+    {
+        return node == NIL ? -1 : height[node];
+    }
+
+    /**
+     * Resets the comparison counters for both search and insert operations.
+     */
+    public void resetCounters()
+    {
+        searchComparisonCount = 0;
+        insertComparisonCount = 0;
+    }
+
+    /**
+     * Gets the number of comparisons made by inserts.
+     *
+     * @return The count of insert comparisons
+     */
+    public long getInsertComparisons()
+    {
+        return insertComparisonCount;
+    }
+
+    /**
+     * Gets the number of comparisons made by searches.
+     *
+     * @return The count of search comparisons
+     */
+    public long getSearchComparisons()
+    {
+        return searchComparisonCount;
+    }
+
+    /**
+     * Prints instrumentation data about the tree operations
+     */
+    public void printInstrumentation()
+    {
+        System.out.println("\nKey comparisons by search: " + searchComparisonCount);
+        System.out.println("Key comparisons by insert: " + insertComparisonCount);
+    }
+}
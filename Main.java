@@ -4,20 +4,67 @@
   Date: 24/03/25
 */
 
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.BufferedWriter;
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
 import java.util.Scanner;
+import java.util.stream.IntStream;
 
 public class Main
 {
     public static final String filePath = "GenericsKB.txt";
+    public static final String snapshotPath = "GenericsKB.snap";
+    public static final String walPath = "GenericsKB.wal";
+    public static final String metricsPath = "metrics";
+    public static final int prefixLimit = 25;
+    public static final int defaultPort = 4040;
+    public static final int fuzzyDistance = 2;
+    public static final int suggestionLimit = 5;
 
     public static void main(String[] args)
     {
-        Scanner scanner = new Scanner(System.in);
+        boolean serve = args.length > 0 && args[0].equals("--serve");
+        int port = defaultPort;
+        if (serve && args.length > 1)
+        {
+            port = parsePort(args[1]);
+            if (port < 0)
+            {
+                System.out.println("Invalid port: " + args[1]);
+                System.out.println("Usage: java Main [--serve [port]]");
+                return;
+            }
+        }
+
         AVLTreeDatabase<Entry> database = new AVLTreeDatabase<>(filePath);
-        database.readFile();
+        database.setDuplicatePolicy(DuplicatePolicy.valueOf(
+                System.getProperty("kb.duplicates", DuplicatePolicy.KEEP_FIRST.name())));
+        database.setStringPooling(Boolean.getBoolean("kb.pool"));
+        double filterRate = Double.parseDouble(System.getProperty("kb.filterRate", "0.01"));
+        if (filterRate > 0)
+            database.enableTermFilter(filterRate);
+        if (Boolean.getBoolean("kb.metrics"))
+            database.enableMetrics();
+        loadDatabase(database);
+        WriteAheadLog log = openLog(database);
+
+        if (serve)
+        {
+            serve(database, log, port);
+            return;
+        }
+
+        if (Boolean.getBoolean("kb.suggest"))
+            database.enableFuzzyIndex();
+        Scanner scanner = new Scanner(System.in);
 
         boolean exit = false;
         while (!exit)
@@ -29,6 +76,8 @@ public class Main
             System.out.println("2. Query multiple terms from a file");
             System.out.println("3. Display comparison statistics");
             System.out.println("4. Exit");
+            System.out.println("5. List terms starting with a prefix");
+            System.out.println("6. Add a statement");
             System.out.print("Enter your choice: ");
 
             int choice = scanner.nextInt();
@@ -48,58 +97,281 @@ public class Main
                 case 4:
                     exit = true;
                     break;
+                case 5:
+                    queryPrefix(scanner, database);
+                    break;
+                case 6:
+                    addStatement(scanner, database, log);
+                    break;
                 default:
                     System.out.println("Invalid choice. Please try again.");
             }
         }
 
+        closeLog(database, log);
+        writeMetrics(database);
         scanner.close();
     }
 
     /**
-     * Query multiple terms from a file
+     * Parses a port number from the command line.
+     *
+     * @param arg The argument to parse
+     * @return The port, from 0 (any free port) to 65535, or -1 if the
+     *         argument is not one
+     */
+    private static int parsePort(String arg)
+    {
+        try
+        {
+            int port = Integer.parseInt(arg.trim());
+            return port >= 0 && port <= 65535 ? port : -1;
+        }
+        catch (NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * Serves lookups to local clients until the process is stopped. Logged
+     * inserts have already been replayed, so the log is closed first.
+     *
+     * @param database The loaded AVL tree database
+     * @param log The open log, or null
+     * @param port The port to listen on
+     */
+    private static void serve(AVLTreeDatabase<Entry> database, WriteAheadLog log, int port)
+    {
+        closeLog(database, log);
+        database.detachLog();
+
+        try (QueryServer server = new QueryServer(database, port))
+        {
+            Runtime.getRuntime().addShutdownHook(new Thread(server::printStatistics));
+            System.out.println("Serving lookups on 127.0.0.1:" + server.getPort()
+                    + ", one term per line");
+            server.serve();
+        }
+        catch (IOException e)
+        {
+            System.out.println("Could not serve lookups: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the recorded metrics to metrics.csv and metrics.json, if metrics
+     * are enabled.
+     *
+     * @param database The AVL tree database
+     */
+    private static void writeMetrics(AVLTreeDatabase<Entry> database)
+    {
+        TreeMetrics metrics = database.getMetrics();
+        if (metrics == null)
+            return;
+
+        try (PrintWriter json = new PrintWriter(metricsPath + ".json"))
+        {
+            metrics.writeCsv(metricsPath + ".csv");
+            json.print(metrics.toJson());
+        }
+        catch (IOException e)
+        {
+            System.out.println("Could not write metrics: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Opens the write-ahead log and replays the inserts the loaded database
+     * does not hold yet: those made since the snapshot was written, or
+     * every logged insert if the database was rebuilt from the text file.
+     *
+     * @param database The loaded AVL tree database
+     * @return The open log, or null if it could not be opened
+     */
+    private static WriteAheadLog openLog(AVLTreeDatabase<Entry> database)
+    {
+        try
+        {
+            WriteAheadLog log = new WriteAheadLog(walPath);
+            long replayed = database.attachLog(log);
+            if (replayed > 0)
+                System.out.println("Replayed " + replayed + " logged inserts");
+            return log;
+        }
+        catch (IOException e)
+        {
+            System.out.println("Could not open log, inserts will not be saved: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Writes a snapshot holding the inserts logged since the last one, so
+     * the next start need not replay them, compacts the log and closes it.
+     *
+     * @param database The AVL tree database
+     * @param log The open log, or null
+     */
+    private static void closeLog(AVLTreeDatabase<Entry> database, WriteAheadLog log)
+    {
+        if (log == null)
+            return;
+
+        database.compactLog(snapshotPath);
+
+        try
+        {
+            log.close();
+        }
+        catch (IOException e)
+        {
+            System.out.println("Could not close log: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Add a statement from user input, waiting until it has been logged
      *
      * @param scanner Scanner for user input
-     * @param database The AVL tree database to query
+     * @param database The AVL tree database to add to
+     * @param log The open log, or null
      */
-    private static void queryTermsFromFile(Scanner scanner, AVLTreeDatabase<Entry> database)
+    private static void addStatement(Scanner scanner, AVLTreeDatabase<Entry> database, WriteAheadLog log)
     {
-        System.out.print("Enter the path to the file containing terms: ");
-        String queryFilePath = scanner.nextLine();
+        System.out.print("Enter the term: ");
+        String term = scanner.nextLine().trim();
+        System.out.print("Enter the statement: ");
+        String tree = scanner.nextLine().trim();
+        System.out.print("Enter the confidence score: ");
+        double confidence;
+        try
+        {
+            confidence = Double.parseDouble(scanner.nextLine().trim());
+        }
+        catch (NumberFormatException e)
+        {
+            System.out.println("Invalid confidence score.");
+            return;
+        }
 
-        try (BufferedReader br = new BufferedReader(new FileReader(queryFilePath)))
+        try
         {
-            String line;
-            int found = 0;
-            int notFound = 0;
+            database.insert(new Entry(term, tree, confidence));
+            if (log != null)
+                log.sync();
+        }
+        catch (UncheckedIOException e)
+        {
+            System.out.println("Could not save statement: " + e.getCause().getMessage());
+            return;
+        }
+        catch (IOException e)
+        {
+            System.out.println("Could not save statement: " + e.getMessage());
+            return;
+        }
+        System.out.println("Added: " + database.find(term));
+    }
 
-            while ((line = br.readLine()) != null)
+    /**
+     * Loads the database from the snapshot and then reads the lines appended
+     * to the source file since it was written. The snapshot is only used
+     * while the source file still starts with the part it was built from;
+     * if the file was edited or replaced, or there is no usable snapshot,
+     * the whole source file is read instead. The snapshot is refreshed
+     * whenever anything was read from the source file.
+     *
+     * @param database The AVL tree database to load
+     */
+    private static void loadDatabase(AVLTreeDatabase<Entry> database)
+    {
+        boolean loaded = false;
+        if (new File(snapshotPath).isFile())
+        {
+            try
             {
-                String term = line.trim();
-                Entry entry = database.find(term);
-
-                if (entry != null)
-                {
-                    System.out.println("Found: " + entry);
-                    found++;
-                }
-                else
-                {
-                    System.out.println("Term not found: " + term);
-                    notFound++;
-                }
+                database.readSnapshot(snapshotPath);
+                loaded = true;
             }
+            catch (IOException e)
+            {
+                System.out.println("Ignoring snapshot: " + e.getMessage());
+            }
+        }
 
-            System.out.println("\nSearch results:");
-            System.out.println("Total terms searched: " + (found + notFound));
-            System.out.println("Terms found: " + found);
-            System.out.println("Terms not found: " + notFound);
+        if (loaded)
+        {
+            int appended = database.readAppended();
+            if (appended == 0)
+                return;
+            System.out.println("Read " + appended + " entries appended to " + filePath);
+        }
+        else
+            database.readFileBulk();
 
+        try
+        {
+            database.writeSnapshot(snapshotPath);
+        }
+        catch (IOException e)
+        {
+            System.out.println("Could not write snapshot: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Query multiple terms from a file
+     *
+     * @param scanner Scanner for user input
+     * @param database The AVL tree database to query
+     */
+    private static void queryTermsFromFile(Scanner scanner, AVLTreeDatabase<Entry> database)
+    {
+        System.out.print("Enter the path to the file containing terms: ");
+        String queryFilePath = scanner.nextLine();
+
+        List<String> terms = new ArrayList<>();
+        try
+        {
+            KBFileReader.forEachLine(queryFilePath, terms::add);
         }
         catch (IOException e)
         {
             System.out.println("Error reading file: " + e.getMessage());
+            return;
+        }
+
+        Entry[] results = database.findAll(terms);
+
+        // Suggestions for the misses share the pool findAll ran on
+        String[] suggestions = new String[results.length];
+        if (database.hasFuzzyIndex())
+        {
+            IntStream.range(0, results.length).parallel()
+                    .filter(i -> results[i] == null)
+                    .forEach(i -> suggestions[i] = suggest(database, terms.get(i)));
+        }
+
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16));
+        for (int i = 0; i < results.length; i++)
+        {
+            if (results[i] != null)
+                out.println("Found: " + results[i]);
+            else
+                out.println("Term not found: " + terms.get(i)
+                        + (suggestions[i] == null ? "" : " (did you mean: " + suggestions[i] + "?)"));
         }
+
+        long found = Arrays.stream(results).filter(Objects::nonNull).count();
+        long notFound = results.length - found;
+
+        out.println("\nSearch results:");
+        out.println("Total terms searched: " + results.length);
+        out.println("Terms found: " + found);
+        out.println("Terms not found: " + notFound);
+        out.flush();
     }
 
     /**
@@ -118,10 +390,62 @@ public class Main
         if (entry != null)
         {
             System.out.println("\nFound: " + entry);
+            for (int i = 1; i < entry.statementCount(); i++)
+                System.out.println("       " + entry.treeAt(i) + " (" + entry.confidenceAt(i) + ")");
         }
         else
         {
             System.out.println("Term not found: " + term);
+            String suggestions = suggest(database, term);
+            if (suggestions != null)
+                System.out.println("Did you mean: " + suggestions + "?");
+        }
+    }
+
+    /**
+     * Lists the closest terms to one that was not found. Short terms are
+     * allowed fewer edits, so "cat" is not matched to every three-letter term.
+     * Suggestions are only made when the fuzzy index is on (-Dkb.suggest).
+     *
+     * @param database The AVL tree database to query
+     * @param term The term that was not found
+     * @return The suggested terms separated by commas, or null if there are none
+     */
+    private static String suggest(AVLTreeDatabase<Entry> database, String term)
+    {
+        if (!database.hasFuzzyIndex())
+            return null;
+        term = term.trim();
+        int maxDistance = Math.min(fuzzyDistance, Math.max(1, term.length() / 4));
+
+        List<String> terms = new ArrayList<>();
+        for (Entry entry : database.findClosest(term, maxDistance, suggestionLimit))
+            terms.add(entry.term);
+        return terms.isEmpty() ? null : String.join(", ", terms);
+    }
+
+    /**
+     * List the terms starting with a prefix from user input
+     *
+     * @param scanner Scanner for user input
+     * @param database The AVL tree database to query
+     */
+    private static void queryPrefix(Scanner scanner, AVLTreeDatabase<Entry> database)
+    {
+        System.out.print("Enter a prefix to search for: ");
+        String prefix = scanner.nextLine();
+
+        Iterator<Entry> matches = database.prefix(prefix).iterator();
+        int shown = 0;
+        while (shown < prefixLimit && matches.hasNext())
+        {
+            System.out.println(matches.next());
+            shown++;
         }
+
+        if (shown == 0)
+            System.out.println("No terms start with: " + prefix);
+        else if (matches.hasNext())
+            System.out.println("... showing the first " + prefixLimit + " matches");
     }
 }
\ No newline at end of file
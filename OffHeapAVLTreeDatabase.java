@@ -0,0 +1,660 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * OffHeapAVLTreeDatabase is an AVL tree of entries whose nodes and payloads
+ * live outside the Java heap, in segments of two memory-mapped scratch files.
+ * The heap only holds the segment tables, and the garbage collector never
+ * has to trace the entries.
+ *
+ * Mapped files are not direct buffers, so they do not count towards
+ * -XX:MaxDirectMemorySize (which defaults to the heap size), and the
+ * operating system can write their pages back to disk under memory
+ * pressure. The size of the knowledge base is therefore limited by disk
+ * space rather than by the heap. The scratch files are deleted by close, or
+ * failing that when the JVM exits.
+ *
+ * Each segment is mapped small at first and remapped at twice the size as
+ * it fills, up to a fixed maximum; the data already written stays in the
+ * file, so growing a segment copies nothing.
+ *
+ * Terms are stored as UTF-8 and compared byte by byte in place. Unsigned
+ * UTF-8 byte order is Unicode code point order, which differs from the
+ * UTF-16 order of String.compareTo only in that supplementary characters
+ * (stored as surrogates, U+D800..U+DFFF, in a String) sort before
+ * U+E000..U+FFFF. Those are the only characters whose lead bytes are 0xEE
+ * or above, so the comparison swaps the two groups of lead bytes, and the
+ * tree has the same order, and the same shape, as AVLTreeDatabase.
+ */
+public class OffHeapAVLTreeDatabase implements AutoCloseable
+{
+    private static final int NIL = -1;
+
+    // Node record layout
+    private static final int LEFT = 0;
+    private static final int RIGHT = 4;
+    private static final int TERM_LENGTH = 8;
+    private static final int TREE_LENGTH = 12;
+    private static final int DATA_ADDRESS = 16;
+    private static final int CONFIDENCE = 24;
+    private static final int HEIGHT = 32;
+    private static final int NODE_SIZE = 40;
+
+    private static final int NODE_SEGMENT_SHIFT = 20;
+    private static final int NODES_PER_SEGMENT = 1 << NODE_SEGMENT_SHIFT;
+    private static final int DATA_SEGMENT_SHIFT = 26;
+    private static final int DATA_SEGMENT_SIZE = 1 << DATA_SEGMENT_SHIFT;
+
+    // Sizes a segment is first mapped at
+    private static final int INITIAL_NODES = 1 << 10;
+    private static final int INITIAL_DATA_SIZE = 1 << 16;
+
+    public String filePath;
+    public long searchComparisonCount = 0;
+    public long insertComparisonCount = 0;
+
+    private final String scratchDirectory;
+    private FileChannel nodeFile;
+    private FileChannel dataFile;
+
+    private int root = NIL;
+    private int size = 0;
+
+    // The nodes an insert passes through, reused between inserts
+    private final int[] insertPath = new int[64];
+
+    private ByteBuffer[] nodeSegments = new ByteBuffer[4];
+    private ByteBuffer[] dataSegments = new ByteBuffer[4];
+    private int nodeSegmentCount = 0;
+    private int dataSegmentCount = 0;
+    private int nodeLimit = 0;
+    private int dataPosition = 0;
+
+    /**
+     * Constructs an OffHeapAVLTreeDatabase with the specified file path,
+     * keeping its scratch files in the system temporary directory.
+     *
+     * @param filePath The path to the file containing the data
+     */
+    public OffHeapAVLTreeDatabase(String filePath)
+    {
+        this(filePath, System.getProperty("java.io.tmpdir"));
+    }
+
+    /**
+     * Constructs an OffHeapAVLTreeDatabase with the specified file path,
+     * keeping its scratch files in the given directory. The files are only
+     * created by the first insert.
+     *
+     * @param filePath The path to the file containing the data
+     * @param scratchDirectory The directory for the scratch files
+     */
+    public OffHeapAVLTreeDatabase(String filePath, String scratchDirectory)
+    {
+        this.filePath = filePath;
+        this.scratchDirectory = scratchDirectory;
+    }
+
+    /**
+     * Returns the number of entries in the tree.
+     *
+     * @return The number of entries
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the size of the mapped node and payload segments.
+     *
+     * @return The number of off-heap bytes mapped
+     */
+    public long offHeapBytes()
+    {
+        long bytes = 0;
+        for (int i = 0; i < nodeSegmentCount; i++)
+            bytes += nodeSegments[i].capacity();
+        for (int i = 0; i < dataSegmentCount; i++)
+            bytes += dataSegments[i].capacity();
+        return bytes;
+    }
+
+    /**
+     * Closes and deletes the scratch files. The tree cannot be used
+     * afterwards.
+     *
+     * @throws IOException If a file cannot be closed
+     */
+    @Override
+    public void close() throws IOException
+    {
+        root = NIL;
+        size = 0;
+        Arrays.fill(nodeSegments, null);
+        Arrays.fill(dataSegments, null);
+        nodeSegmentCount = 0;
+        dataSegmentCount = 0;
+        nodeLimit = 0;
+
+        try
+        {
+            if (nodeFile != null)
+                nodeFile.close();
+        }
+        finally
+        {
+            if (dataFile != null)
+                dataFile.close();
+        }
+    }
+
+    /**
+     * Inserts an entry into the tree. If the term is already present the
+     * existing entry is kept.
+     *
+     * @param entry The entry to insert
+     */
+    public void insert(Entry entry)
+    {
+        byte[] key = entry.term.getBytes(StandardCharsets.UTF_8);
+
+        // Walk down as KeyedAVLTree.insert does, remembering the path and
+        // which way each step went, then rebalance back up it
+        int[] path = insertPath;
+        long wentRight = 0;
+        int depth = 0;
+
+        int current = root;
+        while (current != NIL)
+        {
+            path[depth] = current;
+            insertComparisonCount++;
+            int cmp = compare(key, current);
+            if (cmp < 0)
+                current = left(current);
+            else
+            {
+                insertComparisonCount++;
+                if (cmp > 0)
+                {
+                    wentRight |= 1L << depth;
+                    current = right(current);
+                }
+                else
+                    return;
+            }
+            depth++;
+        }
+
+        int child = newNode(key, entry);
+        for (int i = depth - 1; i >= 0; i--)
+        {
+            int parent = path[i];
+            if ((wentRight & (1L << i)) != 0)
+                setRight(parent, child);
+            else
+                setLeft(parent, child);
+
+            int oldHeight = height(parent);
+            child = balance(parent);
+            if (height(child) == oldHeight)
+            {
+                // Heights above are unchanged; at most the link to this
+                // subtree moved
+                if (i == 0)
+                    root = child;
+                else if ((wentRight & (1L << (i - 1))) != 0)
+                    setRight(path[i - 1], child);
+                else
+                    setLeft(path[i - 1], child);
+                return;
+            }
+        }
+        root = child;
+    }
+
+    /**
+     * Finds an entry in the tree by its term. The term is encoded once and
+     * compared against the stored bytes without creating any strings.
+     *
+     * @param term The term to search for
+     * @return A new Entry holding the stored values if found, null otherwise
+     */
+    public Entry find(String term)
+    {
+        byte[] key = term.getBytes(StandardCharsets.UTF_8);
+        int node = root;
+        while (node != NIL)
+        {
+            searchComparisonCount++;
+            int cmp = compare(key, node);
+            if (cmp < 0)
+                node = left(node);
+            else if (cmp > 0)
+                node = right(node);
+            else
+                return entryAt(node);
+        }
+        return null;
+    }
+
+    /**
+     * Searches for an entry in the tree.
+     *
+     * @param entry The entry to search for
+     * @return The found entry, or null if not found
+     */
+    public Entry search(Entry entry)
+    {
+        return find(entry.term);
+    }
+
+    /**
+     * Reads entries from a file and inserts them into the tree.
+     */
+    public void readFile()
+    {
+        try
+        {
+            KBFileReader.forEachEntry(filePath, this::insert);
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Compares a UTF-8 key with the term stored at a node, in the same order
+     * as String.compareTo.
+     *
+     * @param key The key to compare
+     * @param node The node to compare against
+     * @return A negative integer, zero, or a positive integer as the key is
+     *         less than, equal to, or greater than the node's term
+     */
+    private int compare(byte[] key, int node)
+    {
+        ByteBuffer record = nodeSegments[node >>> NODE_SEGMENT_SHIFT];
+        int base = recordOffset(node);
+        int len = record.getInt(base + TERM_LENGTH);
+        long address = record.getLong(base + DATA_ADDRESS);
+
+        ByteBuffer data = dataSegments[(int) (address >>> DATA_SEGMENT_SHIFT)];
+        int off = (int) (address & (DATA_SEGMENT_SIZE - 1));
+        int n = Math.min(key.length, len);
+        for (int k = 0; k < n; k++)
+        {
+            int c = key[k] & 0xFF;
+            int d = data.get(off + k) & 0xFF;
+            if (c != d)
+                return utf16Order(c) - utf16Order(d);
+        }
+        return key.length - len;
+    }
+
+    /**
+     * Maps the first byte that differs between two UTF-8 terms so that
+     * unsigned order becomes UTF-16 order. The bytes before it are equal, so
+     * it starts a character in both terms or continues one with the same
+     * lead byte. Lead bytes 0xF0..0xF4 (supplementary characters) move down
+     * to 0xEE..0xF2 and 0xEE..0xEF (U+E000..U+FFFF) move up past them.
+     *
+     * @param b The unsigned byte
+     * @return The byte's rank in UTF-16 order
+     */
+    private static int utf16Order(int b)
+    {
+        if (b < 0xEE)
+            return b;
+        return b >= 0xF0 ? b - 2 : b + 5;
+    }
+
+    /**
+     * Rebuilds the Entry stored at a node.
+     *
+     * @param node The node to read
+     * @return A new Entry with the node's values
+     */
+    private Entry entryAt(int node)
+    {
+        ByteBuffer record = nodeSegments[node >>> NODE_SEGMENT_SHIFT];
+        int base = recordOffset(node);
+        int termLength = record.getInt(base + TERM_LENGTH);
+        int treeLength = record.getInt(base + TREE_LENGTH);
+        long address = record.getLong(base + DATA_ADDRESS);
+
+        ByteBuffer data = dataSegments[(int) (address >>> DATA_SEGMENT_SHIFT)];
+        int off = (int) (address & (DATA_SEGMENT_SIZE - 1));
+        byte[] bytes = new byte[termLength + treeLength];
+        data.get(off, bytes, 0, bytes.length);
+
+        String term = new String(bytes, 0, termLength, StandardCharsets.UTF_8);
+        String tree = new String(bytes, termLength, treeLength, StandardCharsets.UTF_8);
+        return new Entry(term, tree, record.getDouble(base + CONFIDENCE));
+    }
+
+    /**
+     * Allocates a new leaf node and copies its term and tree off-heap.
+     *
+     * @param key The UTF-8 bytes of the entry's term
+     * @param entry The entry to store
+     * @return The index of the new node
+     */
+    private int newNode(byte[] key, Entry entry)
+    {
+        byte[] tree = entry.tree.getBytes(StandardCharsets.UTF_8);
+        long address = allocateData(key.length + tree.length);
+        ByteBuffer data = dataSegments[(int) (address >>> DATA_SEGMENT_SHIFT)];
+        int off = (int) (address & (DATA_SEGMENT_SIZE - 1));
+        data.put(off, key);
+        data.put(off + key.length, tree);
+
+        int node = size;
+        if (node == nodeLimit)
+            growNodes();
+        size++;
+
+        ByteBuffer record = nodeSegments[node >>> NODE_SEGMENT_SHIFT];
+        int base = recordOffset(node);
+        record.putInt(base + LEFT, NIL);
+        record.putInt(base + RIGHT, NIL);
+        record.putInt(base + TERM_LENGTH, key.length);
+        record.putInt(base + TREE_LENGTH, tree.length);
+        record.putLong(base + DATA_ADDRESS, address);
+        record.putDouble(base + CONFIDENCE, entry.confidence);
+        record.putInt(base + HEIGHT, 0);
+        return node;
+    }
+
+    /**
+     * Reserves space in the data arena. A payload never straddles two
+     * segments; the current segment is remapped larger until it reaches the
+     * maximum size, and only then is a new one started.
+     *
+     * @param length The number of bytes needed
+     * @return The address of the reserved space
+     */
+    private long allocateData(int length)
+    {
+        if (length > DATA_SEGMENT_SIZE)
+            throw new IllegalArgumentException("Entry too large for off-heap storage: " + length + " bytes");
+
+        int segment = dataSegmentCount - 1;
+        if (segment < 0 || dataPosition + length > DATA_SEGMENT_SIZE)
+        {
+            if (dataSegmentCount == dataSegments.length)
+                dataSegments = Arrays.copyOf(dataSegments, dataSegmentCount * 2);
+            segment = dataSegmentCount++;
+            dataPosition = 0;
+        }
+
+        int mapped = dataSegments[segment] == null ? 0 : dataSegments[segment].capacity();
+        if (dataPosition + length > mapped)
+        {
+            int capacity = Math.max(mapped, INITIAL_DATA_SIZE);
+            while (capacity < dataPosition + length)
+                capacity *= 2;
+            dataFile = open(dataFile, "kb-data");
+            dataSegments[segment] = map(dataFile, (long) segment << DATA_SEGMENT_SHIFT, capacity);
+        }
+
+        long address = ((long) segment << DATA_SEGMENT_SHIFT) | dataPosition;
+        dataPosition += length;
+        return address;
+    }
+
+    /**
+     * Makes room for the next node record, by remapping the last node
+     * segment at twice the size or, if it is full, starting a new one.
+     */
+    private void growNodes()
+    {
+        int segment = nodeLimit >>> NODE_SEGMENT_SHIFT;
+        int nodes;
+        if (segment == nodeSegmentCount)
+        {
+            if (nodeSegmentCount == nodeSegments.length)
+                nodeSegments = Arrays.copyOf(nodeSegments, nodeSegmentCount * 2);
+            nodeSegmentCount++;
+            nodes = INITIAL_NODES;
+        }
+        else
+            nodes = Math.min(NODES_PER_SEGMENT, 2 * (nodeLimit - (segment << NODE_SEGMENT_SHIFT)));
+
+        nodeFile = open(nodeFile, "kb-nodes");
+        nodeSegments[segment] = map(nodeFile, (long) segment * NODES_PER_SEGMENT * NODE_SIZE, nodes * NODE_SIZE)
+                .order(ByteOrder.nativeOrder());
+        nodeLimit = (segment << NODE_SEGMENT_SHIFT) + nodes;
+    }
+
+    /**
+     * Creates a scratch file the first time it is needed. The file is
+     * deleted when it is closed.
+     *
+     * @param file The scratch file, or null if it has not been created yet
+     * @param prefix The prefix of the file's name
+     * @return The open scratch file
+     */
+    private FileChannel open(FileChannel file, String prefix)
+    {
+        if (file != null)
+            return file;
+
+        try
+        {
+            Path path = Files.createTempFile(Paths.get(scratchDirectory), prefix, ".bin");
+            return FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException("Cannot create off-heap scratch file in " + scratchDirectory, e);
+        }
+    }
+
+    /**
+     * Maps a region of a scratch file, extending the file if needed.
+     *
+     * @param file The scratch file
+     * @param offset The offset of the region
+     * @param length The length of the region
+     * @return The mapped region
+     */
+    private static ByteBuffer map(FileChannel file, long offset, int length)
+    {
+        try
+        {
+            return file.map(FileChannel.MapMode.READ_WRITE, offset, length);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException("Cannot map off-heap scratch file", e);
+        }
+    }
+
+    /**
+     * Returns the byte offset of a node's record within its segment.
+     *
+     * @param node The node index
+     * @return The offset of the record
+     */
+    private static int recordOffset(int node)
+    {
+        return (node & (NODES_PER_SEGMENT - 1)) * NODE_SIZE;
+    }
+
+    /**
+     * Returns the left child of a node.
+     */
+    private int left(int node)
+    {
+        return nodeSegments[node >>> NODE_SEGMENT_SHIFT].getInt(recordOffset(node) + LEFT);
+    }
+
+    /**
+     * Returns the right child of a node.
+     */
+    private int right(int node)
+    {
+        return nodeSegments[node >>> NODE_SEGMENT_SHIFT].getInt(recordOffset(node) + RIGHT);
+    }
+
+    /**
+     * Sets the left child of a node.
+     */
+    private void setLeft(int node, int child)
+    {
+        nodeSegments[node >>> NODE_SEGMENT_SHIFT].putInt(recordOffset(node) + LEFT, child);
+    }
+
+    /**
+     * Sets the right child of a node.
+     */
+    private void setRight(int node, int child)
+    {
+        nodeSegments[node >>> NODE_SEGMENT_SHIFT].putInt(recordOffset(node) + RIGHT, child);
+    }
+
+    /**
+     * Returns the height of a node.
+     *
+     * @param node The node to get the height of
+     * @return The height of the node, or -1 if the node is NIL
+     */
+    private int height(int node)
+    {
+        return node == NIL ? -1 : nodeSegments[node >>> NODE_SEGMENT_SHIFT].getInt(recordOffset(node) + HEIGHT);
+    }
+
+    /**
+     * Updates the height of a node.
+     *
+     * @param node The node to update the height for
+     */
+    private void fixHeight(int node)
+    {
+        int hl = height(left(node));
+        int hr = height(right(node));
+        nodeSegments[node >>> NODE_SEGMENT_SHIFT].putInt(recordOffset(node) + HEIGHT, (hl > hr ? hl : hr) + 1);
+    }
+
+    /**
+     * Performs a left rotation on the given node.
+     *
+     * @param q The node to rotate
+     * @return The new root of the rotated subtree
+     */
+    private int rotateLeft(int q)
+    {
+        int p = right(q);
+        setRight(q, left(p));
+        setLeft(p, q);
+        fixHeight(q);
+        fixHeight(p);
+        return p;
+    }
+
+    /**
+     * Performs a right rotation on the given node.
+     *
+     * @param p The node to rotate
+     * @return The new root of the rotated subtree
+     */
+    private int rotateRight(int p)
+    {
+        int q = left(p);
+        setLeft(p, right(q));
+        setRight(q, p);
+        fixHeight(p);
+        fixHeight(q);
+        return q;
+    }
+
+    /**
+     * Balances the tree at the given node.
+     *
+     * @param node The node to balance
+     * @return The new root of the balanced subtree
+     */
+    private int balance(int node)
+    {
+        fixHeight(node);
+
+        if (balanceFactor(node) == 2)
+        {
+            if (balanceFactor(right(node)) < 0)
+                setRight(node, rotateRight(right(node)));
+            return rotateLeft(node);
+        }
+
+        if (balanceFactor(node) == -2)
+        {
+            if (balanceFactor(left(node)) > 0)
+                setLeft(node, rotateLeft(left(node)));
+            return rotateRight(node);
+        }
+
+        return node;
+    }
+
+    /**
+     * Calculates the balance factor of a node.
+     *
+     * @param node The node to calculate the balance factor for
+     * @return The balance factor
+     */
+    private int balanceFactor(int node)
+    {
+        return height(right(node)) - height(left(node));
+    }
+
+    /**
+     * Resets the comparison counters for both search and insert operations.
+     */
+    public void resetCounters()
+    {
+        searchComparisonCount = 0;
+        insertComparisonCount = 0;
+    }
+
+    /**
+     * Gets the number of comparisons made during the last insert operation.
+     *
+     * @return The count of insert comparisons
+     */
+    public long getInsertComparisons()
+    {
+        return insertComparisonCount;
+    }
+
+    /**
+     * Gets the number of comparisons made during the last search operation.
+     *
+     * @return The count of search comparisons
+     */
+    public long getSearchComparisons()
+    {
+        return searchComparisonCount;
+    }
+
+    /**
+     * Prints instrumentation data about the tree operations
+     */
+    public void printInstrumentation()
+    {
+        System.out.println("\nKey comparisons by search: " + searchComparisonCount);
+        System.out.println("Key comparisons by insert: " + insertComparisonCount);
+        System.out.println("Off-heap bytes allocated: " + offHeapBytes());
+    }
+}
@@ -5,6 +5,7 @@
 import pandas as pd
 import matplotlib.pyplot as plt
 import numpy as np
+import os
 
 # Load data from CSV file
 data = pd.read_csv('results.csv')
@@ -56,3 +57,25 @@ ax2.grid(True)
 plt.tight_layout()
 plt.savefig('avl_performance.png', dpi=300)
 plt.show()
+
+# Plot the latency percentiles written by PerformanceTest, if present
+if os.path.exists('metrics.csv'):
+    metrics = pd.read_csv('metrics.csv')
+    percentiles = ['p50', 'p75', 'p90', 'p95', 'p99', 'p99.9', 'p99.99', 'max']
+
+    fig, ax = plt.subplots(figsize=(8, 6))
+    for name, label, style in [('insert.latencyNanos', 'Insert', 'b-'),
+                               ('find.latencyNanos', 'Search', 'g-')]:
+        rows = metrics[metrics['metric'] == name].set_index('statistic')['value']
+        ax.plot(percentiles, [rows[p] for p in percentiles], style, label=label, marker='o')
+
+    ax.set_title('AVL Tree Operation Latency Percentiles')
+    ax.set_xlabel('Percentile')
+    ax.set_ylabel('Latency (ns)')
+    ax.set_yscale('log')
+    ax.legend()
+    ax.grid(True)
+
+    plt.tight_layout()
+    plt.savefig('avl_latency.png', dpi=300)
+    plt.show()
@@ -5,18 +5,51 @@
 */
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * This class is used to test and analyze the performance of AVL tree operations.
  * It runs experiments with varying dataset sizes and measures the number of comparisons
- * needed for insert and search operations.
+ * needed for insert and search operations, along with wall time, time per operation
+ * and bytes allocated.
+ *
+ * Every dataset size is run for several trials, each on its own seeded random subset.
+ * The timed operations of the trials run one trial at a time on the main thread, so
+ * trials do not compete for cores, caches or the collector, and small trials repeat
+ * their operations until there are enough of them to time reliably. Only the
+ * comparison counts, which do not depend on timing, are collected in parallel on every
+ * core. Results are averaged over the trials and reported with 95% confidence intervals.
+ * The seed and number of trials can be set with -Dseed and -Dtrials.
  */
 public class PerformanceTest
 {
     private static final String FULL_DATA_FILE = "GenericsKB.txt";
     private static final String QUERY_FILE = "GenericsKB-queries.txt";
     private static final int[] DATASET_SIZES = {5, 25, 50, 250, 500,1500,3500, 5000,7500, 50000};
+    private static final int TRIALS = Integer.getInteger("trials", 10);
+    private static final int WARMUP_TRIALS = 3;
+    private static final long SEED = Long.getLong("seed", 42);
+    // Each timed phase repeats its operations until it has done at least this many
+    private static final int MIN_TIMED_OPS = 100000;
+
+    private static final String CSV_HEADER = "n,InsertMinComps,InsertAvgComps,InsertMaxComps,"
+            + "SearchMinComps,SearchAvgComps,SearchMaxComps,"
+            + "Trials,InsertAvgCompsCI95,SearchAvgCompsCI95,"
+            + "InsertWallMs,InsertWallMsCI95,InsertNsPerOp,InsertNsPerOpCI95,"
+            + "InsertBytesPerOp,InsertBytesPerOpCI95,"
+            + "SearchWallMs,SearchWallMsCI95,SearchNsPerOp,SearchNsPerOpCI95,"
+            + "SearchBytesPerOp,SearchBytesPerOpCI95";
+
+    // Two-sided 95% critical values of Student's t for 1 to 30 degrees of freedom
+    private static final double[] T_95 = {
+            12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228,
+            2.201, 2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086,
+            2.080, 2.074, 2.069, 2.064, 2.060, 2.056, 2.052, 2.048, 2.045, 2.042 };
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
 
     public static void main(String[] args)
     {
@@ -39,31 +72,112 @@ public class PerformanceTest
         List<Entry> allEntries = loadAllEntries();
         List<String> queries = loadQueries();
 
-        // Map to store results for each dataset size
-        Map<Integer, ExperimentResult> results = new TreeMap<>();
+        if (THREADS.isThreadAllocatedMemorySupported())
+            THREADS.setThreadAllocatedMemoryEnabled(true);
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try
+        {
+            // Let the JIT compile the tree code before anything is measured
+            runTrials(pool, allEntries, queries, WARMUP_TRIALS, SEED ^ 0x5DEECE66DL);
+            Map<Integer, List<TrialResult>> trials = runTrials(pool, allEntries, queries, TRIALS, SEED);
+
+            // Map to store results for each dataset size
+            Map<Integer, ExperimentResult> results = new TreeMap<>();
+            for (Map.Entry<Integer, List<TrialResult>> e : trials.entrySet())
+                results.put(e.getKey(), new ExperimentResult(e.getValue()));
+
+            System.out.println(TRIALS + " trials per size timed one at a time, comparisons counted on "
+                    + threads + " threads, seed " + SEED);
+            System.out.println(CSV_HEADER);
+            for (Map.Entry<Integer, ExperimentResult> e : results.entrySet())
+                System.out.println(e.getKey() + "," + e.getValue().toCsv());
+
+            writeResultsToCSV(results);
+            System.out.println("\nResults have been written to results.csv");
 
-        System.out.println("n,InsertMinComps,InsertAvgComps,InsertMaxComps,SearchMinComps,SearchAvgComps,SearchMaxComps");
+            // Latency and comparison distributions of the first trial of the largest run
+            int largest = DATASET_SIZES[DATASET_SIZES.length - 1];
+            TreeMetrics metrics = trials.get(largest).get(0).metrics;
+            metrics.writeCsv("metrics.csv");
+            try (PrintWriter writer = new PrintWriter(new FileWriter("metrics.json")))
+            {
+                writer.print(metrics.toJson());
+            }
+            System.out.println("Metrics for n=" + largest + " have been written to metrics.csv and metrics.json");
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
 
+    /**
+     * Runs the given number of trials of every dataset size. The timed phases
+     * run one trial at a time on this thread; once they are all done the
+     * comparison counts are collected on the pool.
+     *
+     * @param pool The pool to count comparisons on
+     * @param allEntries The complete list of entries
+     * @param queries The terms to search for
+     * @param trials The number of trials per size
+     * @param seed The seed the subsets are derived from
+     * @return The trial results for each dataset size, in trial order
+     * @throws IOException If a trial fails
+     */
+    private static Map<Integer, List<TrialResult>> runTrials(ExecutorService pool, List<Entry> allEntries,
+                                                             List<String> queries, int trials, long seed)
+            throws IOException
+    {
+        Map<Integer, List<List<Entry>>> subsets = new TreeMap<>();
+        Map<Integer, List<TrialResult>> results = new TreeMap<>();
         for (int n : DATASET_SIZES)
         {
-            List<Entry> randomSubset = createRandomSubset(allEntries, n);
-            ExperimentResult result = runExperimentWithSubset(randomSubset, queries);
+            List<List<Entry>> sizeSubsets = new ArrayList<>();
+            List<TrialResult> sizeResults = new ArrayList<>();
+            for (int trial = 0; trial < trials; trial++)
+            {
+                long trialSeed = (seed * 31 + n) * 31 + trial;
+                List<Entry> subset = createRandomSubset(allEntries, n, new Random(trialSeed));
+                sizeSubsets.add(subset);
+                sizeResults.add(timeTrial(subset, queries));
+            }
+            subsets.put(n, sizeSubsets);
+            results.put(n, sizeResults);
+        }
 
-            results.put(n, result);
+        // The largest sizes are submitted first so the pool stays busy to the end
+        Map<Integer, List<Future<TreeMetrics>>> futures = new TreeMap<>(Collections.reverseOrder());
+        for (Map.Entry<Integer, List<List<Entry>>> e : subsets.entrySet())
+        {
+            List<Future<TreeMetrics>> sizeFutures = new ArrayList<>();
+            for (List<Entry> subset : e.getValue())
+                sizeFutures.add(pool.submit(() -> countComparisons(subset, queries)));
+            futures.put(e.getKey(), sizeFutures);
+        }
 
-            System.out.println(n + "," +
-                    result.insertMinComps + "," +
-                    result.insertAvgComps + "," +
-                    result.insertMaxComps + "," +
-                    result.searchMinComps + "," +
-                    result.searchAvgComps + "," +
-                    result.searchMaxComps);
+        try
+        {
+            for (Map.Entry<Integer, List<Future<TreeMetrics>>> e : futures.entrySet())
+            {
+                List<TrialResult> sizeResults = results.get(e.getKey());
+                for (int trial = 0; trial < trials; trial++)
+                    sizeResults.get(trial).metrics = e.getValue().get(trial).get();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for trials");
+        }
+        catch (ExecutionException e)
+        {
+            throw new IOException("Trial failed", e.getCause());
         }
-        writeResultsToCSV(results);
-        System.out.println("\nResults have been written to results.csv");
+        return results;
     }
 
-
     /**
      * Loads all entries from the full data file.
      *
@@ -72,22 +186,7 @@ public class PerformanceTest
      */
     private static List<Entry> loadAllEntries() throws IOException
     {
-        List<Entry> entries = new ArrayList<>();
-        try (BufferedReader reader = new BufferedReader(new FileReader(FULL_DATA_FILE)))
-        {
-            String line;
-            while ((line = reader.readLine()) != null)
-            {
-                String[] parts = line.split("\t");
-                if (parts.length >= 3) {
-                    String term = parts[0];
-                    String tree = parts[1];
-                    double confidence = Double.parseDouble(parts[2]);
-                    entries.add(new Entry(term, tree, confidence));
-                }
-            }
-        }
-        return entries;
+        return KBFileReader.readEntries(FULL_DATA_FILE);
     }
 
     /**
@@ -99,77 +198,170 @@ public class PerformanceTest
     private static List<String> loadQueries() throws IOException
     {
         List<String> queries = new ArrayList<>();
-        try (BufferedReader reader = new BufferedReader(new FileReader(QUERY_FILE)))
-        {
-            String line;
-            while ((line = reader.readLine()) != null)
-            {
-                queries.add(line.trim());
-            }
-        }
+        KBFileReader.forEachLine(QUERY_FILE, queries::add);
         return queries;
     }
 
     /**
-     * Creates a random subset of entries of the specified size.
+     * Creates a random subset of entries of the specified size, in random
+     * order. Indices are drawn with Floyd's algorithm, so only the n chosen
+     * entries are touched rather than a shuffled copy of the whole list.
      *
      * @param allEntries The complete list of entries
      * @param n The size of the subset to create
+     * @param random The source of randomness, seeded for reproducible subsets
      * @return A random subset of entries with size n
      */
-    private static List<Entry> createRandomSubset(List<Entry> allEntries, int n)
+    private static List<Entry> createRandomSubset(List<Entry> allEntries, int n, Random random)
     {
-        List<Entry> entriesCopy = new ArrayList<>(allEntries);
-        Collections.shuffle(entriesCopy);
-        return entriesCopy.subList(0, Math.min(n, entriesCopy.size()));
+        int total = allEntries.size();
+        n = Math.min(n, total);
+
+        Set<Integer> chosen = new HashSet<>(n * 2);
+        int[] picks = new int[n];
+        int count = 0;
+        for (int j = total - n; j < total; j++)
+        {
+            int t = random.nextInt(j + 1);
+            if (!chosen.add(t))
+            {
+                t = j;
+                chosen.add(j);
+            }
+            picks[count++] = t;
+        }
+
+        // Floyd's algorithm picks a uniform set but not a uniform order
+        for (int i = n - 1; i > 0; i--)
+        {
+            int j = random.nextInt(i + 1);
+            int swap = picks[i];
+            picks[i] = picks[j];
+            picks[j] = swap;
+        }
+
+        List<Entry> subset = new ArrayList<>(n);
+        for (int index : picks)
+            subset.add(allEntries.get(index));
+        return subset;
     }
 
     /**
-     * Runs a single experiment with the given subset of entries and queries.
+     * Times the operations of one trial on trees without metrics, measuring
+     * the bytes this thread allocates. Both phases are repeated until they
+     * have done at least MIN_TIMED_OPS operations, so that even the smallest
+     * trials take long enough to measure, and the time and bytes of one
+     * repeat are recorded. The trees for the insert repeats are created
+     * before the clock starts. The collector is run first so that garbage
+     * left by the previous trial is not collected during this one.
      *
      * @param entries The entries to insert into the AVL tree
      * @param queries The terms to search for in the AVL tree
-     * @return An ExperimentResult containing statistics about the experiment
+     * @return A TrialResult holding the timings, without metrics
      */
-    private static ExperimentResult runExperimentWithSubset(List<Entry> entries, List<String> queries)
+    private static TrialResult timeTrial(List<Entry> entries, List<String> queries)
     {
+        TrialResult result = new TrialResult();
+        long thread = Thread.currentThread().getId();
+        System.gc();
 
-        AVLTreeDatabase<Entry> database = new AVLTreeDatabase<>(null);
+        int insertRepeats = repeats(entries.size());
+        List<AVLTreeDatabase<Entry>> trees = new ArrayList<>(insertRepeats);
+        for (int i = 0; i < insertRepeats; i++)
+            trees.add(new AVLTreeDatabase<>(null));
 
-        List<Integer> insertComparisons = new ArrayList<>();
+        long bytes = THREADS.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (AVLTreeDatabase<Entry> tree : trees)
+        {
+            for (Entry entry : entries)
+                tree.insert(entry);
+        }
+        result.insertNanos = (System.nanoTime() - start) / insertRepeats;
+        result.insertBytes = (THREADS.getThreadAllocatedBytes(thread) - bytes) / insertRepeats;
 
-        for (Entry entry : entries)
+        AVLTreeDatabase<Entry> timed = trees.get(0);
+        int searchRepeats = repeats(queries.size());
+        bytes = THREADS.getThreadAllocatedBytes(thread);
+        start = System.nanoTime();
+        for (int i = 0; i < searchRepeats; i++)
         {
-            database.resetCounters();
-            database.insert(entry);
-            insertComparisons.add(database.getInsertComparisons());
+            for (String query : queries)
+                timed.find(query);
         }
+        result.searchNanos = (System.nanoTime() - start) / searchRepeats;
+        result.searchBytes = (THREADS.getThreadAllocatedBytes(thread) - bytes) / searchRepeats;
+
+        result.inserts = entries.size();
+        result.searches = queries.size();
+        return result;
+    }
+
+    /**
+     * Works out how many times a phase of some operations must be repeated
+     * to do at least MIN_TIMED_OPS operations.
+     *
+     * @param operations The number of operations in one repeat
+     * @return The number of repeats, at least one
+     */
+    private static int repeats(int operations)
+    {
+        return Math.max(1, (MIN_TIMED_OPS + operations - 1) / Math.max(1, operations));
+    }
 
-        List<Integer> searchComparisons = new ArrayList<>();
+    /**
+     * Repeats the operations of one trial on a tree with metrics enabled to
+     * collect the per-operation comparison counts, so that the timings do
+     * not include the cost of recording metrics.
+     *
+     * @param entries The entries to insert into the AVL tree
+     * @param queries The terms to search for in the AVL tree
+     * @return The metrics of the operations
+     */
+    private static TreeMetrics countComparisons(List<Entry> entries, List<String> queries)
+    {
+        AVLTreeDatabase<Entry> counted = new AVLTreeDatabase<>(null);
+        TreeMetrics metrics = counted.enableMetrics();
+        for (Entry entry : entries)
+            counted.insert(entry);
         for (String query : queries)
-        {
-            database.resetCounters();
-            database.search(new Entry(query, "", 0.0));
-            searchComparisons.add(database.getSearchComparisons());
-        }
-        return new ExperimentResult(
-                Collections.min(insertComparisons),
-                calculateAverage(insertComparisons),
-                Collections.max(insertComparisons),
-                Collections.min(searchComparisons),
-                calculateAverage(searchComparisons),
-                Collections.max(searchComparisons));
+            counted.find(query);
+        return metrics;
     }
 
     /**
-     * Calculates the average value from a list of integers.
+     * Works out the half-width of the 95% confidence interval of a mean.
      *
-     * @param values The list of integer values
-     * @return The average of the values
+     * @param values The samples
+     * @return The half-width, or 0 for fewer than two samples
      */
-    private static double calculateAverage(List<Integer> values)
+    private static double confidenceInterval(double[] values)
     {
-        return values.stream().mapToInt(Integer::intValue).average().orElse(0.0);
+        int n = values.length;
+        if (n < 2)
+            return 0.0;
+
+        double mean = mean(values);
+        double squares = 0;
+        for (double v : values)
+            squares += (v - mean) * (v - mean);
+        double standardError = Math.sqrt(squares / (n - 1) / n);
+        double t = n - 1 <= T_95.length ? T_95[n - 2] : 1.960;
+        return t * standardError;
+    }
+
+    /**
+     * Works out the mean of some samples.
+     *
+     * @param values The samples
+     * @return The mean, or 0 if there are none
+     */
+    private static double mean(double[] values)
+    {
+        double sum = 0;
+        for (double v : values)
+            sum += v;
+        return values.length == 0 ? 0.0 : sum / values.length;
     }
 
     /**
@@ -182,48 +374,134 @@ public class PerformanceTest
     {
         try (PrintWriter writer = new PrintWriter(new FileWriter("results.csv")))
         {
-            writer.println("n,InsertMinComps,InsertAvgComps,InsertMaxComps,SearchMinComps,SearchAvgComps,SearchMaxComps");
+            writer.println(CSV_HEADER);
 
             // Sort keys to ensure ordered output by dataset size
             List<Integer> sortedKeys = new ArrayList<>(results.keySet());
             Collections.sort(sortedKeys);
 
             for (Integer n : sortedKeys)
-            {
-                ExperimentResult result = results.get(n);
-                writer.println(n + "," +
-                        result.insertMinComps + "," +
-                        result.insertAvgComps + "," +
-                        result.insertMaxComps + "," +
-                        result.searchMinComps + "," +
-                        result.searchAvgComps + "," +
-                        result.searchMaxComps);
-            }
+                writer.println(n + "," + results.get(n).toCsv());
         }
     }
 
+    /**
+     * The measurements taken in one trial of one dataset size.
+     */
+    static class TrialResult
+    {
+        int inserts;
+        int searches;
+        long insertNanos;
+        long searchNanos;
+        long insertBytes;
+        long searchBytes;
+        TreeMetrics metrics;
+    }
+
     /**
      * A class to store the results of a performance experiment.
-     * Contains minimum, average, and maximum comparison counts for both insert and search operations.
+     * Contains minimum, average, and maximum comparison counts for both insert and search operations,
+     * and the wall time, time per operation and bytes allocated per operation averaged over the trials,
+     * each with the half-width of its 95% confidence interval.
      */
     static class ExperimentResult
     {
-        int insertMinComps;
+        long insertMinComps;
         double insertAvgComps;
-        int insertMaxComps;
-        int searchMinComps;
+        long insertMaxComps;
+        long searchMinComps;
         double searchAvgComps;
-        int searchMaxComps;
+        long searchMaxComps;
+
+        int trials;
+        double insertAvgCompsCI;
+        double searchAvgCompsCI;
+        double insertWallMillis, insertWallMillisCI;
+        double insertNsPerOp, insertNsPerOpCI;
+        double insertBytesPerOp, insertBytesPerOpCI;
+        double searchWallMillis, searchWallMillisCI;
+        double searchNsPerOp, searchNsPerOpCI;
+        double searchBytesPerOp, searchBytesPerOpCI;
+
+        public ExperimentResult(List<TrialResult> results)
+        {
+            trials = results.size();
+            insertMinComps = Long.MAX_VALUE;
+            searchMinComps = Long.MAX_VALUE;
+
+            double[] insertComps = new double[trials], searchComps = new double[trials];
+            double[] insertWall = new double[trials], searchWall = new double[trials];
+            double[] insertNs = new double[trials], searchNs = new double[trials];
+            double[] insertBytes = new double[trials], searchBytes = new double[trials];
+
+            for (int i = 0; i < trials; i++)
+            {
+                TrialResult r = results.get(i);
+                Histogram inserts = r.metrics.getInsertComparisons();
+                Histogram searches = r.metrics.getFindComparisons();
+
+                insertMinComps = Math.min(insertMinComps, inserts.getMin());
+                insertMaxComps = Math.max(insertMaxComps, inserts.getMax());
+                searchMinComps = Math.min(searchMinComps, searches.getMin());
+                searchMaxComps = Math.max(searchMaxComps, searches.getMax());
+                insertComps[i] = inserts.getMean();
+                searchComps[i] = searches.getMean();
+
+                insertWall[i] = r.insertNanos / 1e6;
+                searchWall[i] = r.searchNanos / 1e6;
+                insertNs[i] = (double) r.insertNanos / Math.max(1, r.inserts);
+                searchNs[i] = (double) r.searchNanos / Math.max(1, r.searches);
+                insertBytes[i] = (double) r.insertBytes / Math.max(1, r.inserts);
+                searchBytes[i] = (double) r.searchBytes / Math.max(1, r.searches);
+            }
+
+            insertAvgComps = mean(insertComps);
+            insertAvgCompsCI = confidenceInterval(insertComps);
+            searchAvgComps = mean(searchComps);
+            searchAvgCompsCI = confidenceInterval(searchComps);
+            insertWallMillis = mean(insertWall);
+            insertWallMillisCI = confidenceInterval(insertWall);
+            insertNsPerOp = mean(insertNs);
+            insertNsPerOpCI = confidenceInterval(insertNs);
+            insertBytesPerOp = mean(insertBytes);
+            insertBytesPerOpCI = confidenceInterval(insertBytes);
+            searchWallMillis = mean(searchWall);
+            searchWallMillisCI = confidenceInterval(searchWall);
+            searchNsPerOp = mean(searchNs);
+            searchNsPerOpCI = confidenceInterval(searchNs);
+            searchBytesPerOp = mean(searchBytes);
+            searchBytesPerOpCI = confidenceInterval(searchBytes);
+        }
 
-        public ExperimentResult(int insertMinComps, double insertAvgComps, int insertMaxComps,
-                                int searchMinComps, double searchAvgComps, int searchMaxComps)
+        /**
+         * Formats the result as CSV columns in the order of the header, after n.
+         *
+         * @return The CSV columns
+         */
+        String toCsv()
         {
-            this.insertMinComps = insertMinComps;
-            this.insertAvgComps = insertAvgComps;
-            this.insertMaxComps = insertMaxComps;
-            this.searchMinComps = searchMinComps;
-            this.searchAvgComps = searchAvgComps;
-            this.searchMaxComps = searchMaxComps;
+            return insertMinComps + "," +
+                    insertAvgComps + "," +
+                    insertMaxComps + "," +
+                    searchMinComps + "," +
+                    searchAvgComps + "," +
+                    searchMaxComps + "," +
+                    trials + "," +
+                    insertAvgCompsCI + "," +
+                    searchAvgCompsCI + "," +
+                    insertWallMillis + "," +
+                    insertWallMillisCI + "," +
+                    insertNsPerOp + "," +
+                    insertNsPerOpCI + "," +
+                    insertBytesPerOp + "," +
+                    insertBytesPerOpCI + "," +
+                    searchWallMillis + "," +
+                    searchWallMillisCI + "," +
+                    searchNsPerOp + "," +
+                    searchNsPerOpCI + "," +
+                    searchBytesPerOp + "," +
+                    searchBytesPerOpCI;
         }
     }
-}
\ No newline at end of file
+}
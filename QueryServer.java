@@ -0,0 +1,450 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * QueryServer answers term lookups over loopback TCP, so the knowledge base
+ * is loaded once and shared by any number of clients.
+ *
+ * The protocol is line based. A client sends one term per line (UTF-8,
+ * surrounding whitespace ignored) and may send as many lines as it likes
+ * without waiting. Each line gets exactly one reply line, in order:
+ * "FOUND", term, statement and confidence separated by tabs, or "MISSING"
+ * and the term.
+ *
+ * One thread runs a selector over every connection. All complete lines read
+ * in one pass over the ready connections are looked up together as a single
+ * batch, so a busy server makes one findAll call per pass instead of one
+ * lookup per line. Nothing may insert into the database while it is served.
+ */
+public class QueryServer implements AutoCloseable
+{
+    /** Longest request line accepted, in bytes. */
+    private static final int MAX_LINE = 1 << 16;
+
+    /** Stop reading from a client while this many reply bytes are unsent. */
+    private static final int MAX_PENDING_OUTPUT = 1 << 20;
+
+    /**
+     * Batches at least this large are looked up in parallel with findAll;
+     * smaller ones are cheaper to answer on the selector thread than to
+     * hand to the fork-join pool.
+     */
+    private static final int PARALLEL_BATCH = 4096;
+
+    private static final boolean MULTI_CORE = Runtime.getRuntime().availableProcessors() > 1;
+
+    private final AVLTreeDatabase<Entry> database;
+    private final Selector selector;
+    private final ServerSocketChannel server;
+
+    private final List<String> batchTerms = new ArrayList<>();
+    private final List<Connection> batchOwners = new ArrayList<>();
+    private final StringBuilder reply = new StringBuilder();
+
+    private volatile boolean running = true;
+    private Thread thread;
+
+    private long requests = 0;
+    private long batches = 0;
+    private long connections = 0;
+
+    /**
+     * Constructs a server listening on the loopback interface.
+     *
+     * @param database The loaded database to serve
+     * @param port The port to listen on, or 0 for any free port
+     * @throws IOException If the port cannot be opened
+     */
+    public QueryServer(AVLTreeDatabase<Entry> database, int port) throws IOException
+    {
+        this.database = database;
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Gets the port the server is listening on.
+     *
+     * @return The port
+     * @throws IOException If the address cannot be read
+     */
+    public int getPort() throws IOException
+    {
+        return ((InetSocketAddress) server.getLocalAddress()).getPort();
+    }
+
+    /**
+     * Serves clients on a background thread.
+     */
+    public synchronized void start()
+    {
+        if (thread != null)
+            return;
+
+        thread = new Thread(() -> {
+            try
+            {
+                serve();
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }, "kb-query-server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Serves clients on the calling thread until the server is closed.
+     *
+     * @throws IOException If the selector fails
+     */
+    public void serve() throws IOException
+    {
+        Set<Connection> touched = new LinkedHashSet<>();
+        while (running)
+        {
+            selector.select();
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext())
+            {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid())
+                    continue;
+
+                if (key.isAcceptable())
+                    accept();
+                else
+                {
+                    Connection connection = (Connection) key.attachment();
+                    if (key.isReadable())
+                        read(connection);
+                    if (key.isValid() && key.isWritable())
+                        touched.add(connection);
+                    if (connection.eof || connection.out.position() > 0)
+                        touched.add(connection);
+                }
+            }
+
+            answerBatch(touched);
+            for (Connection connection : touched)
+            {
+                // Reported after the replies to the lines before it
+                if (connection.tooLong)
+                {
+                    connection.append("ERROR\tline longer than " + MAX_LINE + " bytes\n");
+                    connection.tooLong = false;
+                }
+                flush(connection);
+            }
+            touched.clear();
+        }
+    }
+
+    /**
+     * Gets the number of lookups answered.
+     *
+     * @return The number of requests
+     */
+    public long getRequests()
+    {
+        return requests;
+    }
+
+    /**
+     * Gets the number of batches the lookups were grouped into.
+     *
+     * @return The number of batches
+     */
+    public long getBatches()
+    {
+        return batches;
+    }
+
+    /**
+     * Prints the server statistics.
+     */
+    public void printStatistics()
+    {
+        System.out.println("Served " + requests + " lookups in " + batches + " batches to "
+                + connections + " connections");
+    }
+
+    /**
+     * Stops the server and closes every connection.
+     *
+     * @throws IOException If a channel cannot be closed
+     */
+    @Override
+    public void close() throws IOException
+    {
+        running = false;
+        selector.wakeup();
+
+        Thread serving;
+        synchronized (this)
+        {
+            serving = thread;
+        }
+        if (serving != null && serving != Thread.currentThread())
+        {
+            try
+            {
+                serving.join();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        for (SelectionKey key : selector.keys())
+            key.channel().close();
+        selector.close();
+    }
+
+    /**
+     * Accepts a waiting client.
+     *
+     * @throws IOException If the client cannot be registered
+     */
+    private void accept() throws IOException
+    {
+        SocketChannel channel = server.accept();
+        if (channel == null)
+            return;
+
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        connections++;
+    }
+
+    /**
+     * Reads what a client has sent and queues every complete line for the
+     * next batch.
+     *
+     * @param connection The client
+     */
+    private void read(Connection connection)
+    {
+        int n;
+        try
+        {
+            n = connection.channel.read(connection.in);
+        }
+        catch (IOException e)
+        {
+            disconnect(connection);
+            return;
+        }
+        if (n < 0)
+            connection.eof = true;
+
+        ByteBuffer in = connection.in;
+        in.flip();
+        int lineStart = in.position();
+        for (int i = lineStart; i < in.limit(); i++)
+        {
+            if (in.get(i) != '\n')
+                continue;
+
+            batchTerms.add(decodeLine(in, lineStart, i));
+            batchOwners.add(connection);
+            lineStart = i + 1;
+        }
+        in.position(lineStart);
+        in.compact();
+
+        // A final line without a newline still counts once the client is done
+        if (connection.eof && in.position() > 0)
+        {
+            in.flip();
+            batchTerms.add(decodeLine(in, 0, in.limit()));
+            batchOwners.add(connection);
+            in.clear();
+        }
+
+        if (!in.hasRemaining())
+        {
+            in.clear();
+            connection.tooLong = true;
+            connection.eof = true;
+        }
+    }
+
+    /**
+     * Looks up every queued term in one batch and queues the replies on
+     * their connections, in the order the lines arrived.
+     *
+     * @param touched Collects the connections that have new replies
+     */
+    private void answerBatch(Set<Connection> touched)
+    {
+        int size = batchTerms.size();
+        if (size == 0)
+            return;
+
+        Entry[] found;
+        if (MULTI_CORE && size >= PARALLEL_BATCH)
+            found = database.findAll(batchTerms);
+        else
+        {
+            found = new Entry[size];
+            for (int i = 0; i < size; i++)
+                found[i] = database.find(batchTerms.get(i));
+        }
+
+        for (int i = 0; i < size; i++)
+        {
+            Connection connection = batchOwners.get(i);
+            reply.setLength(0);
+            Entry entry = found[i];
+            if (entry == null)
+                reply.append("MISSING\t").append(batchTerms.get(i));
+            else
+                reply.append("FOUND\t").append(entry.term).append('\t')
+                        .append(entry.tree).append('\t').append(entry.confidence);
+            connection.append(reply.append('\n'));
+            touched.add(connection);
+        }
+
+        requests += size;
+        batches++;
+        batchTerms.clear();
+        batchOwners.clear();
+    }
+
+    /**
+     * Sends as much pending output as the client will take, and sets which
+     * events to wait for next.
+     *
+     * @param connection The client
+     */
+    private void flush(Connection connection)
+    {
+        if (!connection.key.isValid())
+            return;
+
+        ByteBuffer out = connection.out;
+        try
+        {
+            out.flip();
+            connection.channel.write(out);
+            out.compact();
+        }
+        catch (IOException e)
+        {
+            disconnect(connection);
+            return;
+        }
+
+        boolean pending = out.position() > 0;
+        if (connection.eof && !pending)
+        {
+            disconnect(connection);
+            return;
+        }
+
+        int interest = 0;
+        if (!connection.eof && out.position() < MAX_PENDING_OUTPUT)
+            interest |= SelectionKey.OP_READ;
+        if (pending)
+            interest |= SelectionKey.OP_WRITE;
+        connection.key.interestOps(interest);
+    }
+
+    /**
+     * Closes a client connection.
+     *
+     * @param connection The client
+     */
+    private void disconnect(Connection connection)
+    {
+        connection.key.cancel();
+        try
+        {
+            connection.channel.close();
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Decodes one request line, dropping surrounding whitespace.
+     *
+     * @param buf The buffer holding the line
+     * @param start The index of the first byte
+     * @param end The index just past the last byte
+     * @return The term
+     */
+    private static String decodeLine(ByteBuffer buf, int start, int end)
+    {
+        while (start < end && (buf.get(start) & 0xFF) <= ' ')
+            start++;
+        while (end > start && (buf.get(end - 1) & 0xFF) <= ' ')
+            end--;
+
+        byte[] bytes = new byte[end - start];
+        buf.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The buffers and state of one client.
+     */
+    private static final class Connection
+    {
+        final SocketChannel channel;
+        final ByteBuffer in = ByteBuffer.allocate(MAX_LINE);
+        ByteBuffer out = ByteBuffer.allocate(1 << 14);
+        SelectionKey key;
+        boolean eof = false;
+        boolean tooLong = false;
+
+        Connection(SocketChannel channel)
+        {
+            this.channel = channel;
+        }
+
+        /**
+         * Queues text to send, growing the output buffer if needed.
+         *
+         * @param text The text to send
+         */
+        void append(CharSequence text)
+        {
+            byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+            if (out.remaining() < bytes.length)
+            {
+                int capacity = Math.max(out.capacity() * 2, out.position() + bytes.length);
+                ByteBuffer grown = ByteBuffer.allocate(capacity);
+                out.flip();
+                grown.put(out);
+                out = grown;
+            }
+            out.put(bytes);
+        }
+    }
+}
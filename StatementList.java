@@ -0,0 +1,107 @@
+import java.util.Arrays;
+
+/**
+ * StatementList holds all the (tree, confidence) statements for one term in
+ * two parallel arrays, ordered from highest to lowest confidence, instead of
+ * one Entry object per statement. Statements with equal confidence keep
+ * their insertion order.
+ */
+final class StatementList
+{
+    private String[] trees;
+    private double[] confidences;
+    private int size;
+
+    /**
+     * Constructs a list holding a single statement.
+     *
+     * @param tree The tree of the statement
+     * @param confidence The confidence of the statement
+     */
+    StatementList(String tree, double confidence)
+    {
+        trees = new String[] {tree, null};
+        confidences = new double[] {confidence, 0.0};
+        size = 1;
+    }
+
+    /**
+     * Constructs a list from statements that are already in order.
+     *
+     * @param trees The trees, highest confidence first
+     * @param confidences The confidences, in the same order
+     */
+    StatementList(String[] trees, double[] confidences)
+    {
+        this.trees = trees;
+        this.confidences = confidences;
+        this.size = trees.length;
+    }
+
+    /**
+     * Returns a copy of this list that can be added to independently.
+     *
+     * @return The copy
+     */
+    StatementList copy()
+    {
+        return new StatementList(Arrays.copyOf(trees, size), Arrays.copyOf(confidences, size));
+    }
+
+    /**
+     * Adds a statement in confidence order.
+     *
+     * @param tree The tree of the statement
+     * @param confidence The confidence of the statement
+     */
+    void add(String tree, double confidence)
+    {
+        if (size == trees.length)
+        {
+            trees = Arrays.copyOf(trees, size * 2);
+            confidences = Arrays.copyOf(confidences, size * 2);
+        }
+
+        int pos = size;
+        while (pos > 0 && confidences[pos - 1] < confidence)
+            pos--;
+
+        System.arraycopy(trees, pos, trees, pos + 1, size - pos);
+        System.arraycopy(confidences, pos, confidences, pos + 1, size - pos);
+        trees[pos] = tree;
+        confidences[pos] = confidence;
+        size++;
+    }
+
+    /**
+     * Returns the number of statements.
+     *
+     * @return The number of statements
+     */
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the tree of a statement.
+     *
+     * @param i The position of the statement, 0 being the most confident
+     * @return The tree
+     */
+    String tree(int i)
+    {
+        return trees[i];
+    }
+
+    /**
+     * Returns the confidence of a statement.
+     *
+     * @param i The position of the statement, 0 being the most confident
+     * @return The confidence
+     */
+    double confidence(int i)
+    {
+        return confidences[i];
+    }
+}
@@ -0,0 +1,212 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * StringPool hands out one shared String for each distinct run of UTF-8
+ * bytes, so a term or statement that appears many times in the knowledge
+ * base is only decoded and stored once. Lookups hash and compare the raw
+ * bytes, so a repeated string costs no allocation at all.
+ *
+ * Pure ASCII strings, which is nearly all of GenericsKB, are compared byte
+ * against char without decoding. Strings with other characters are decoded
+ * first and then pooled by value.
+ *
+ * The pool is split into independently locked segments so that the parallel
+ * loader's threads can share one pool. A pool is meant to live for one load
+ * and then be dropped; the strings it handed out stay shared.
+ *
+ * Pooling costs a hash and a probe per field, so it only pays off when the
+ * input really repeats itself, for example statements kept under KEEP_ALL.
+ * String already stores Latin-1 text one byte per character, so the pool
+ * keeps ordinary Strings rather than raw UTF-8 arrays.
+ */
+final class StringPool
+{
+    private static final int SEGMENT_BITS = 6;
+
+    private final Segment[] segments = new Segment[1 << SEGMENT_BITS];
+
+    /**
+     * Constructs an empty pool.
+     */
+    StringPool()
+    {
+        for (int i = 0; i < segments.length; i++)
+            segments[i] = new Segment();
+    }
+
+    /**
+     * Returns the pooled string for a UTF-8 byte range, decoding and adding
+     * it if it has not been seen before.
+     *
+     * @param buf The buffer holding the bytes
+     * @param start The index of the first byte
+     * @param end The index just past the last byte
+     * @return The shared string
+     */
+    String intern(ByteBuffer buf, int start, int end)
+    {
+        // For ASCII this equals String.hashCode, so both paths share one table
+        int h = 0;
+        boolean ascii = true;
+        for (int i = start; i < end; i++)
+        {
+            byte b = buf.get(i);
+            h = 31 * h + b;
+            ascii &= b >= 0;
+        }
+
+        if (!ascii)
+        {
+            byte[] bytes = new byte[end - start];
+            buf.get(start, bytes);
+            String s = new String(bytes, StandardCharsets.UTF_8);
+            h = s.hashCode() * 0x9E3779B9;
+            return segment(h).intern(h, null, 0, 0, s);
+        }
+
+        h *= 0x9E3779B9;
+        return segment(h).intern(h, buf, start, end, null);
+    }
+
+    /**
+     * Gets the number of distinct strings in the pool.
+     *
+     * @return The number of strings
+     */
+    int size()
+    {
+        int size = 0;
+        for (Segment segment : segments)
+        {
+            synchronized (segment)
+            {
+                size += segment.count;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Gets the number of lookups answered with a string already in the pool.
+     *
+     * @return The number of hits
+     */
+    long hits()
+    {
+        long total = 0;
+        for (Segment segment : segments)
+        {
+            synchronized (segment)
+            {
+                total += segment.hits;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Picks the segment for a hash, using its top bits so that the low bits
+     * stay free for the table index.
+     *
+     * @param h The hash
+     * @return The segment
+     */
+    private Segment segment(int h)
+    {
+        return segments[h >>> (32 - SEGMENT_BITS)];
+    }
+
+    /**
+     * One open-addressed table of pooled strings with their hashes.
+     */
+    private static final class Segment
+    {
+        private String[] strings = new String[64];
+        private int[] hashes = new int[64];
+        private int count = 0;
+        private long hits = 0;
+
+        /**
+         * Looks up a string by hash and either its ASCII bytes or its value,
+         * adding it if it is missing.
+         *
+         * @param h The hash
+         * @param buf The buffer holding ASCII bytes, or null to look up value
+         * @param start The index of the first byte
+         * @param end The index just past the last byte
+         * @param value The decoded string, used when buf is null
+         * @return The shared string
+         */
+        synchronized String intern(int h, ByteBuffer buf, int start, int end, String value)
+        {
+            int mask = strings.length - 1;
+            int slot = h & mask;
+            for (String s = strings[slot]; s != null; s = strings[slot = (slot + 1) & mask])
+            {
+                if (hashes[slot] == h && (buf == null ? s.equals(value) : matches(s, buf, start, end)))
+                {
+                    hits++;
+                    return s;
+                }
+            }
+
+            if (value == null)
+            {
+                byte[] bytes = new byte[end - start];
+                buf.get(start, bytes);
+                value = new String(bytes, StandardCharsets.ISO_8859_1);
+            }
+
+            strings[slot] = value;
+            hashes[slot] = h;
+            if (++count * 2 > strings.length)
+                grow();
+            return value;
+        }
+
+        /**
+         * Checks whether a pooled string equals a run of ASCII bytes.
+         *
+         * @param s The pooled string
+         * @param buf The buffer holding the bytes
+         * @param start The index of the first byte
+         * @param end The index just past the last byte
+         * @return true if they hold the same characters
+         */
+        private static boolean matches(String s, ByteBuffer buf, int start, int end)
+        {
+            if (s.length() != end - start)
+                return false;
+            for (int i = 0; i < s.length(); i++)
+            {
+                if (s.charAt(i) != buf.get(start + i))
+                    return false;
+            }
+            return true;
+        }
+
+        /**
+         * Doubles the table and re-inserts every string.
+         */
+        private void grow()
+        {
+            String[] oldStrings = strings;
+            int[] oldHashes = hashes;
+            strings = new String[oldStrings.length * 2];
+            hashes = new int[oldStrings.length * 2];
+
+            int mask = strings.length - 1;
+            for (int i = 0; i < oldStrings.length; i++)
+            {
+                if (oldStrings[i] == null)
+                    continue;
+                int slot = oldHashes[i] & mask;
+                while (strings[slot] != null)
+                    slot = (slot + 1) & mask;
+                strings[slot] = oldStrings[i];
+                hashes[slot] = oldHashes[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,239 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * TermCache is a bounded cache of find results, keyed by term. It caches
+ * misses as well as hits, so repeated lookups of absent terms are also a
+ * single hash probe.
+ *
+ * Two eviction policies are supported. LRU always admits the new term and
+ * evicts the least recently used one. TINY_LFU keeps the LRU order but only
+ * admits a new term if it has been requested more often than the term it
+ * would evict, using an approximate, periodically halved frequency sketch,
+ * so a burst of one-off lookups cannot flush the hot set.
+ */
+public class TermCache
+{
+    /**
+     * Eviction policy used when the cache is full.
+     */
+    public enum Policy
+    {
+        LRU,
+        TINY_LFU
+    }
+
+    /** Stored in place of an Entry to record that a term is not in the tree. */
+    static final Entry NEGATIVE = new Entry("", "", 0.0);
+
+    private final int capacity;
+    private final Policy policy;
+    private final LinkedHashMap<String, Entry> map;
+    private final FrequencySketch sketch;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * Constructs a cache holding at most capacity terms.
+     *
+     * @param capacity The maximum number of cached terms
+     * @param policy The eviction policy
+     */
+    public TermCache(int capacity, Policy policy)
+    {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Cache capacity must be positive: " + capacity);
+
+        this.capacity = capacity;
+        this.policy = policy;
+        this.map = new LinkedHashMap<>(capacity * 4 / 3 + 1, 0.75f, true);
+        this.sketch = policy == Policy.TINY_LFU ? new FrequencySketch(capacity) : null;
+    }
+
+    /**
+     * Looks up a term.
+     *
+     * @param term The term to look up
+     * @return The cached Entry, NEGATIVE if the term is cached as absent, or
+     *         null if the term is not cached
+     */
+    Entry get(String term)
+    {
+        if (sketch != null)
+            sketch.increment(term);
+
+        Entry cached = map.get(term);
+        if (cached != null)
+            hits++;
+        else
+            misses++;
+        return cached;
+    }
+
+    /**
+     * Caches the result of a lookup.
+     *
+     * @param term The term that was looked up
+     * @param entry The Entry found, or null if the term is not in the tree
+     */
+    void put(String term, Entry entry)
+    {
+        Entry value = entry == null ? NEGATIVE : entry;
+
+        if (map.size() >= capacity && !map.containsKey(term))
+        {
+            Iterator<Map.Entry<String, Entry>> eldest = map.entrySet().iterator();
+            String victim = eldest.next().getKey();
+            if (sketch != null && sketch.frequency(term) <= sketch.frequency(victim))
+                return;
+            eldest.remove();
+            evictions++;
+        }
+
+        map.put(term, value);
+    }
+
+    /**
+     * Removes a term from the cache, for example after it has been inserted.
+     *
+     * @param term The term to remove
+     */
+    void invalidate(String term)
+    {
+        map.remove(term);
+    }
+
+    /**
+     * Removes every term from the cache.
+     */
+    void clear()
+    {
+        map.clear();
+    }
+
+    /**
+     * Gets the number of lookups answered from the cache.
+     *
+     * @return The number of cache hits
+     */
+    public long getHits()
+    {
+        return hits;
+    }
+
+    /**
+     * Gets the number of lookups that had to walk the tree.
+     *
+     * @return The number of cache misses
+     */
+    public long getMisses()
+    {
+        return misses;
+    }
+
+    /**
+     * Gets the number of terms evicted to make room for new ones.
+     *
+     * @return The number of evictions
+     */
+    public long getEvictions()
+    {
+        return evictions;
+    }
+
+    /**
+     * Prints the cache statistics.
+     */
+    public void printStatistics()
+    {
+        System.out.println("Cache (" + policy + ", " + map.size() + "/" + capacity + " terms): "
+                + hits + " hits, " + misses + " misses, " + evictions + " evictions");
+    }
+
+    /**
+     * A count-min sketch of request frequencies with four rows of small
+     * saturating counters. All counters are halved after a fixed number of
+     * increments, so old popularity fades.
+     */
+    private static final class FrequencySketch
+    {
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+        private final byte[][] rows;
+        private final int mask;
+        private final int sampleSize;
+        private int additions = 0;
+
+        FrequencySketch(int capacity)
+        {
+            int width = Integer.highestOneBit(Math.max(16, capacity * 4 - 1)) << 1;
+            rows = new byte[SEEDS.length][width];
+            mask = width - 1;
+            sampleSize = width * 10;
+        }
+
+        /**
+         * Records one request for a term.
+         *
+         * @param term The requested term
+         */
+        void increment(String term)
+        {
+            int h = term.hashCode();
+            for (int i = 0; i < rows.length; i++)
+            {
+                int index = index(h, i);
+                if (rows[i][index] < MAX_COUNT)
+                    rows[i][index]++;
+            }
+
+            if (++additions == sampleSize)
+                age();
+        }
+
+        /**
+         * Estimates how often a term has been requested recently.
+         *
+         * @param term The term to estimate
+         * @return The estimated count, at most MAX_COUNT
+         */
+        int frequency(String term)
+        {
+            int h = term.hashCode();
+            int min = MAX_COUNT;
+            for (int i = 0; i < rows.length; i++)
+                min = Math.min(min, rows[i][index(h, i)]);
+            return min;
+        }
+
+        /**
+         * Maps a hash code to a counter in one row.
+         *
+         * @param h The hash code of the term
+         * @param row The row index
+         * @return The counter index within the row
+         */
+        private int index(int h, int row)
+        {
+            int x = h * SEEDS[row];
+            return (x ^ (x >>> 16)) & mask;
+        }
+
+        /**
+         * Halves every counter.
+         */
+        private void age()
+        {
+            for (byte[] row : rows)
+            {
+                for (int i = 0; i < row.length; i++)
+                    row[i] >>= 1;
+            }
+            additions /= 2;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * TermFilter is a Bloom filter over the terms in a tree, checked before a
+ * lookup descends. It never rejects a term that was added, and rejects all
+ * but roughly the configured share of the terms that were not, so most
+ * misses cost one hash and one cache line instead of a full-depth descent.
+ *
+ * The filter is blocked: each term's bits all fall in one 512-bit block
+ * chosen by its hash, so a check touches a single cache line. That raises
+ * the false-positive rate slightly for the same size, which is made up for
+ * by sizing the filter for a third lower rate than requested.
+ *
+ * Terms are hashed from String.hashCode, which strings cache, so checking a
+ * term that has been looked up before does not rescan it. Checks may run
+ * concurrently with each other but not with add.
+ */
+public class TermFilter
+{
+    private static final int BLOCK_WORDS = 8;
+    private static final int BLOCK_BITS = BLOCK_WORDS * 64;
+    private static final int MIN_CAPACITY = 1024;
+    private static final int MAX_HASHES = 16;
+
+    private final double falsePositiveRate;
+    private final int capacity;
+    private final int hashes;
+    private final long[] words;
+    private final int blocks;
+    private int size = 0;
+
+    private final LongAdder rejected;
+    private final LongAdder falsePositives;
+
+    /**
+     * Constructs an empty filter sized for a number of terms.
+     *
+     * @param capacity The number of terms expected
+     * @param falsePositiveRate The share of absent terms allowed through,
+     *        between 0 and 1 exclusive
+     */
+    public TermFilter(int capacity, double falsePositiveRate)
+    {
+        this(capacity, falsePositiveRate, new LongAdder(), new LongAdder());
+    }
+
+    /**
+     * Constructs an empty filter that adds to existing statistics.
+     *
+     * @param capacity The number of terms expected
+     * @param falsePositiveRate The share of absent terms allowed through
+     * @param rejected The count of rejected lookups
+     * @param falsePositives The count of lookups let through that missed
+     */
+    private TermFilter(int capacity, double falsePositiveRate, LongAdder rejected, LongAdder falsePositives)
+    {
+        if (!(falsePositiveRate > 0 && falsePositiveRate < 1))
+            throw new IllegalArgumentException("False-positive rate must be between 0 and 1: " + falsePositiveRate);
+
+        this.falsePositiveRate = falsePositiveRate;
+        this.capacity = Math.max(MIN_CAPACITY, capacity);
+        this.rejected = rejected;
+        this.falsePositives = falsePositives;
+
+        double ln2 = Math.log(2);
+        double bitsPerTerm = -Math.log(falsePositiveRate * 2 / 3) / (ln2 * ln2);
+        hashes = (int) Math.max(1, Math.min(MAX_HASHES, Math.round(bitsPerTerm * ln2)));
+        long bits = (long) Math.ceil(this.capacity * bitsPerTerm);
+        blocks = (int) Math.max(1, Math.min(Integer.MAX_VALUE / BLOCK_WORDS, (bits + BLOCK_BITS - 1) / BLOCK_BITS));
+        words = new long[blocks * BLOCK_WORDS];
+    }
+
+    /**
+     * Returns an empty filter with the same false-positive rate and room for
+     * more terms, which keeps adding to this filter's statistics.
+     *
+     * @param capacity The number of terms expected
+     * @return The new filter
+     */
+    public TermFilter resized(int capacity)
+    {
+        return new TermFilter(capacity, falsePositiveRate, rejected, falsePositives);
+    }
+
+    /**
+     * Adds a term.
+     *
+     * @param term The term to add
+     */
+    public void add(String term)
+    {
+        long h = mix(term.hashCode());
+        int base = block(h);
+        int step = (int) h | 1;
+        int bit = (int) (h >>> 16);
+        for (int i = 0; i < hashes; i++)
+        {
+            words[base + ((bit >>> 6) & (BLOCK_WORDS - 1))] |= 1L << bit;
+            bit += step;
+        }
+        size++;
+    }
+
+    /**
+     * Checks whether a term may have been added.
+     *
+     * @param term The term to check
+     * @return false if the term was certainly never added
+     */
+    public boolean mightContain(String term)
+    {
+        long h = mix(term.hashCode());
+        int base = block(h);
+        int step = (int) h | 1;
+        int bit = (int) (h >>> 16);
+        for (int i = 0; i < hashes; i++)
+        {
+            if ((words[base + ((bit >>> 6) & (BLOCK_WORDS - 1))] & (1L << bit)) == 0)
+                return false;
+            bit += step;
+        }
+        return true;
+    }
+
+    /**
+     * Records the outcome of lookups that consulted the filter.
+     *
+     * @param rejections The number of terms the filter rejected
+     * @param passedMisses The number of terms it let through that were not found
+     */
+    public void record(long rejections, long passedMisses)
+    {
+        if (rejections != 0)
+            rejected.add(rejections);
+        if (passedMisses != 0)
+            falsePositives.add(passedMisses);
+    }
+
+    /**
+     * Checks whether more terms have been added than the filter was sized
+     * for, so its false-positive rate is above the target.
+     *
+     * @return true if the filter should be rebuilt larger
+     */
+    public boolean isFull()
+    {
+        return size > capacity;
+    }
+
+    /**
+     * Returns the number of terms added.
+     *
+     * @return The number of terms
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the memory used by the filter's bits.
+     *
+     * @return The size in bytes
+     */
+    public long getMemoryBytes()
+    {
+        return (long) words.length * 8;
+    }
+
+    /**
+     * Returns the number of lookups the filter rejected without a descent.
+     *
+     * @return The number of rejections
+     */
+    public long getRejected()
+    {
+        return rejected.sum();
+    }
+
+    /**
+     * Returns the number of lookups the filter let through that then missed.
+     *
+     * @return The number of false positives
+     */
+    public long getFalsePositives()
+    {
+        return falsePositives.sum();
+    }
+
+    /**
+     * Prints the size of the filter and how many misses it caught.
+     */
+    public void printStatistics()
+    {
+        long rejections = getRejected();
+        long passed = getFalsePositives();
+        double observed = rejections + passed == 0 ? 0.0 : 100.0 * passed / (rejections + passed);
+        System.out.printf("Term filter (%d terms, %.1f KiB, %.1f bits/term, %d hashes): "
+                        + "%d misses rejected, %d false positives (%.2f%% observed, %.2f%% target)%n",
+                size, getMemoryBytes() / 1024.0, size == 0 ? 0.0 : getMemoryBytes() * 8.0 / size, hashes,
+                rejections, passed, observed, falsePositiveRate * 100);
+    }
+
+    /**
+     * Picks the block for a hash.
+     *
+     * @param h The mixed hash
+     * @return The index of the block's first word
+     */
+    private int block(long h)
+    {
+        return (int) (((h >>> 32) * blocks) >>> 32) * BLOCK_WORDS;
+    }
+
+    /**
+     * Spreads the bits of a 32-bit hash over 64 bits (the MurmurHash3
+     * finaliser).
+     *
+     * @param hash The hash to mix
+     * @return The mixed hash
+     */
+    private static long mix(int hash)
+    {
+        long h = hash * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,281 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * TreeMetrics collects per-operation measurements for an AVLTreeDatabase:
+ * latency and comparison histograms for inserts and finds, latency of batch
+ * lookups, rotation counts by type, and the throughput of each kind of file
+ * load. The tree only records into it while metrics are enabled, so with
+ * metrics off the cost is one null check per operation.
+ *
+ * Results can be printed, or exported as CSV (one metric,statistic,value row
+ * per figure, which PerformancePlot.py reads) or as JSON.
+ */
+public class TreeMetrics
+{
+    /** Percentiles exported for every histogram. */
+    private static final double[] PERCENTILES = {50, 75, 90, 95, 99, 99.9, 99.99};
+
+    /**
+     * Kinds of rotation performed while rebalancing.
+     */
+    public enum Rotation
+    {
+        LEFT,
+        RIGHT,
+        RIGHT_LEFT,
+        LEFT_RIGHT
+    }
+
+    final Histogram insertNanos = new Histogram();
+    final Histogram insertComparisons = new Histogram();
+    final Histogram findNanos = new Histogram();
+    final Histogram findComparisons = new Histogram();
+    final Histogram batchFindNanos = new Histogram();
+    final long[] rotations = new long[Rotation.values().length];
+
+    // Per load kind: {loads, entries, nanoseconds}
+    private final Map<String, long[]> loads = new LinkedHashMap<>();
+
+    /**
+     * Records one completed file load.
+     *
+     * @param kind The kind of load, such as readFileBulk
+     * @param entries The number of entries the load added
+     * @param nanos How long the load took in nanoseconds
+     */
+    void recordLoad(String kind, long entries, long nanos)
+    {
+        long[] totals = loads.computeIfAbsent(kind, k -> new long[3]);
+        totals[0]++;
+        totals[1] += entries;
+        totals[2] += nanos;
+    }
+
+    /**
+     * Gets the insert latency histogram, in nanoseconds.
+     *
+     * @return The histogram
+     */
+    public Histogram getInsertLatency()
+    {
+        return insertNanos;
+    }
+
+    /**
+     * Gets the histogram of key comparisons per insert.
+     *
+     * @return The histogram
+     */
+    public Histogram getInsertComparisons()
+    {
+        return insertComparisons;
+    }
+
+    /**
+     * Gets the find latency histogram, in nanoseconds.
+     *
+     * @return The histogram
+     */
+    public Histogram getFindLatency()
+    {
+        return findNanos;
+    }
+
+    /**
+     * Gets the histogram of key comparisons per find. Finds answered by the
+     * cache record 0 comparisons.
+     *
+     * @return The histogram
+     */
+    public Histogram getFindComparisons()
+    {
+        return findComparisons;
+    }
+
+    /**
+     * Gets the latency histogram of whole findAll and findAllSorted batches,
+     * in nanoseconds.
+     *
+     * @return The histogram
+     */
+    public Histogram getBatchFindLatency()
+    {
+        return batchFindNanos;
+    }
+
+    /**
+     * Gets the number of rotations of one kind.
+     *
+     * @param rotation The kind of rotation
+     * @return The number performed
+     */
+    public long getRotations(Rotation rotation)
+    {
+        return rotations[rotation.ordinal()];
+    }
+
+    /**
+     * Clears every measurement.
+     */
+    public void reset()
+    {
+        for (Histogram h : histograms().values())
+            h.reset();
+        for (int i = 0; i < rotations.length; i++)
+            rotations[i] = 0;
+        loads.clear();
+    }
+
+    /**
+     * Prints a summary of every measurement.
+     */
+    public void printSummary()
+    {
+        for (Map.Entry<String, Histogram> e : histograms().entrySet())
+        {
+            Histogram h = e.getValue();
+            if (h.getCount() == 0)
+                continue;
+            System.out.printf("%-22s n=%d min=%d mean=%.1f p50=%d p99=%d p99.9=%d max=%d%n",
+                    e.getKey(), h.getCount(), h.getMin(), h.getMean(), h.getPercentile(50),
+                    h.getPercentile(99), h.getPercentile(99.9), h.getMax());
+        }
+
+        StringBuilder line = new StringBuilder("Rotations:");
+        for (Rotation r : Rotation.values())
+            line.append(' ').append(r).append('=').append(rotations[r.ordinal()]);
+        System.out.println(line);
+
+        for (Map.Entry<String, long[]> e : loads.entrySet())
+        {
+            long[] t = e.getValue();
+            System.out.printf("Load %-17s %d entries in %.1f ms (%.0f entries/s)%n",
+                    e.getKey(), t[1], t[2] / 1e6, entriesPerSecond(t));
+        }
+    }
+
+    /**
+     * Writes every measurement to a CSV file with the columns
+     * metric,statistic,value.
+     *
+     * @param path The path of the CSV file
+     * @throws IOException If the file cannot be written
+     */
+    public void writeCsv(String path) throws IOException
+    {
+        try (PrintWriter out = new PrintWriter(new FileWriter(path)))
+        {
+            out.println("metric,statistic,value");
+            for (Map.Entry<String, Histogram> e : histograms().entrySet())
+            {
+                Histogram h = e.getValue();
+                String name = e.getKey();
+                out.println(name + ",count," + h.getCount());
+                out.println(name + ",min," + h.getMin());
+                out.println(name + ",mean," + h.getMean());
+                for (double p : PERCENTILES)
+                    out.println(name + ",p" + format(p) + "," + h.getPercentile(p));
+                out.println(name + ",max," + h.getMax());
+            }
+            for (Rotation r : Rotation.values())
+                out.println("rotations," + r + "," + rotations[r.ordinal()]);
+            for (Map.Entry<String, long[]> e : loads.entrySet())
+            {
+                long[] t = e.getValue();
+                String name = "load." + e.getKey();
+                out.println(name + ",loads," + t[0]);
+                out.println(name + ",entries," + t[1]);
+                out.println(name + ",nanos," + t[2]);
+                out.println(name + ",entriesPerSecond," + entriesPerSecond(t));
+            }
+        }
+    }
+
+    /**
+     * Returns every measurement as a JSON object.
+     *
+     * @return The JSON text
+     */
+    public String toJson()
+    {
+        StringBuilder json = new StringBuilder("{\n  \"histograms\": {");
+        String separator = "\n";
+        for (Map.Entry<String, Histogram> e : histograms().entrySet())
+        {
+            Histogram h = e.getValue();
+            json.append(separator).append("    \"").append(e.getKey()).append("\": {")
+                    .append("\"count\": ").append(h.getCount())
+                    .append(", \"min\": ").append(h.getMin())
+                    .append(", \"mean\": ").append(h.getMean());
+            for (double p : PERCENTILES)
+                json.append(", \"p").append(format(p)).append("\": ").append(h.getPercentile(p));
+            json.append(", \"max\": ").append(h.getMax()).append('}');
+            separator = ",\n";
+        }
+
+        json.append("\n  },\n  \"rotations\": {");
+        separator = "";
+        for (Rotation r : Rotation.values())
+        {
+            json.append(separator).append('"').append(r).append("\": ").append(rotations[r.ordinal()]);
+            separator = ", ";
+        }
+
+        json.append("},\n  \"loads\": {");
+        separator = "\n";
+        for (Map.Entry<String, long[]> e : loads.entrySet())
+        {
+            long[] t = e.getValue();
+            json.append(separator).append("    \"").append(e.getKey()).append("\": {")
+                    .append("\"loads\": ").append(t[0])
+                    .append(", \"entries\": ").append(t[1])
+                    .append(", \"nanos\": ").append(t[2])
+                    .append(", \"entriesPerSecond\": ").append(entriesPerSecond(t)).append('}');
+            separator = ",\n";
+        }
+        json.append(loads.isEmpty() ? "}\n}\n" : "\n  }\n}\n");
+        return json.toString();
+    }
+
+    /**
+     * Lists the histograms under their exported names.
+     *
+     * @return The histograms, in export order
+     */
+    private Map<String, Histogram> histograms()
+    {
+        Map<String, Histogram> all = new LinkedHashMap<>();
+        all.put("insert.latencyNanos", insertNanos);
+        all.put("insert.comparisons", insertComparisons);
+        all.put("find.latencyNanos", findNanos);
+        all.put("find.comparisons", findComparisons);
+        all.put("findAll.latencyNanos", batchFindNanos);
+        return all;
+    }
+
+    /**
+     * Works out the throughput of a kind of load.
+     *
+     * @param totals The load totals {loads, entries, nanoseconds}
+     * @return The entries loaded per second
+     */
+    private static double entriesPerSecond(long[] totals)
+    {
+        return totals[2] == 0 ? 0.0 : totals[1] * 1e9 / totals[2];
+    }
+
+    /**
+     * Formats a percentile for a column name, without a trailing ".0".
+     *
+     * @param p The percentile
+     * @return The formatted percentile
+     */
+    private static String format(double p)
+    {
+        return p == Math.rint(p) ? Long.toString((long) p) : Double.toString(p);
+    }
+}
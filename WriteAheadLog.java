@@ -0,0 +1,681 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * WriteAheadLog is an append-only log of inserted entries, so inserts made at
+ * runtime survive a restart. Each record is a length, a CRC32 of the payload
+ * and the payload itself (the term, then the tree and confidence of every
+ * statement the entry holds).
+ *
+ * Records are committed in groups. Appends only copy the record into a
+ * pending buffer; a single writer thread writes everything pending and then
+ * calls fsync once for the whole group. While one fsync is in progress the
+ * next group builds up, so the number of fsyncs depends on the disk, not on
+ * the insert rate. Callers that need a record to be on disk before carrying
+ * on wait for it with awaitDurable or sync.
+ *
+ * Every record is kept, so a database rebuilt from its source file can
+ * replay them all, but the log file itself stays short: compact moves its
+ * records to a base file beside it (the log's path plus ".base") and empties
+ * the log. Positions in the log, as returned by length, count the records in
+ * the base too, so they stay valid across compactions. A snapshot records
+ * the log's length when it was written, and a database loaded from it
+ * replays only the records after that, without reading the base.
+ *
+ * Both files start with a header holding a generation. The log's goes up by
+ * one at every compaction, and the base holds the generation of the last log
+ * moved into it. The base is written under a temporary name and moved into
+ * place before the log is emptied, so if a crash comes in between, the log
+ * is found to be in the base already when it is next opened, and is emptied
+ * then.
+ *
+ * A crash can leave a partly written record at the end of the log. When the
+ * log is opened, records are checked up to the first one that is incomplete
+ * or fails its checksum, and the log is cut back to just before it.
+ */
+public class WriteAheadLog implements AutoCloseable
+{
+    /** Appends block while this many bytes are waiting to be written. */
+    private static final int MAX_PENDING = 16 << 20;
+
+    /** Records larger than this are treated as corrupt. */
+    private static final int MAX_RECORD = 64 << 20;
+
+    private static final int RECORD_HEADER = 8;
+
+    private static final int LOG_MAGIC = 0x4B42574C;  // "KBWL"
+    private static final int BASE_MAGIC = 0x4B425742; // "KBWB"
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER = 16;
+
+    private final Path path;
+    private final Path basePath;
+    private final FileChannel channel;
+    private final long commitDelayNanos;
+    private final Thread writer;
+
+    private final Object lock = new Object();
+    private ByteBuffer pending = ByteBuffer.allocate(1 << 16);
+    private ByteBuffer spare = ByteBuffer.allocate(1 << 16);
+    private long appended = 0;
+    private long durable = 0;
+    private long records = 0;
+    private long length = 0;
+    private long baseLength = 0;
+    private long generation = 0;
+    private long commits = 0;
+    private IOException failure;
+    private boolean closed = false;
+
+    /**
+     * Opens a log, creating it if it does not exist, with no extra commit
+     * delay. Records are still grouped while an fsync is in progress.
+     *
+     * @param path The path of the log file
+     * @throws IOException If the log cannot be opened or recovered
+     */
+    public WriteAheadLog(String path) throws IOException
+    {
+        this(path, 0);
+    }
+
+    /**
+     * Opens a log, creating it if it does not exist. Any partly written
+     * record at the end of the log is removed, and a log whose records are
+     * already in the base is emptied.
+     *
+     * @param path The path of the log file
+     * @param commitDelayMicros How long the writer waits after the first
+     *        record of a group for more to arrive before writing it
+     * @throws IOException If the log cannot be opened or recovered
+     */
+    public WriteAheadLog(String path, long commitDelayMicros) throws IOException
+    {
+        this.path = Paths.get(path);
+        this.basePath = Paths.get(path + ".base");
+        this.commitDelayNanos = commitDelayMicros * 1000;
+
+        long baseGeneration = -1;
+        if (Files.exists(basePath))
+        {
+            try (FileChannel base = FileChannel.open(basePath, StandardOpenOption.READ))
+            {
+                baseGeneration = readHeader(base, BASE_MAGIC, basePath);
+                long[] valid = scan(basePath, FILE_HEADER, null);
+                if (valid[0] != base.size())
+                    throw new IOException("Corrupt log base: " + basePath);
+                baseLength = valid[0] - FILE_HEADER;
+                records = valid[1];
+            }
+        }
+
+        this.channel = FileChannel.open(this.path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long logGeneration = channel.size() < FILE_HEADER ? -1 : readHeader(channel, LOG_MAGIC, this.path);
+        if (logGeneration <= baseGeneration)
+            reset(baseGeneration + 1);
+        else
+        {
+            generation = logGeneration;
+            long[] valid = scan(this.path, FILE_HEADER, null);
+            if (valid[0] < channel.size())
+            {
+                channel.truncate(valid[0]);
+                channel.force(true);
+            }
+            channel.position(valid[0]);
+            records += valid[1];
+        }
+        length = baseLength + channel.position() - FILE_HEADER;
+
+        writer = new Thread(this::writeLoop, "kb-wal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Passes every record in the log, including those in the base, to the
+     * given action, oldest first. Records appended so far are made durable
+     * first.
+     *
+     * @param action The action to perform on each logged entry
+     * @return The number of records replayed
+     * @throws IOException If the log cannot be read
+     */
+    public long replay(Consumer<? super Entry> action) throws IOException
+    {
+        return replay(0, action);
+    }
+
+    /**
+     * Passes the records after a point in the log to the given action,
+     * oldest first. Records appended so far are made durable first. The
+     * base is only read if from is inside it. If the log is now shorter
+     * than from, it has been replaced since that length was read, and every
+     * record is replayed.
+     *
+     * @param from A length of the log returned by length
+     * @param action The action to perform on each logged entry
+     * @return The number of records replayed
+     * @throws IOException If the log cannot be read
+     */
+    public long replay(long from, Consumer<? super Entry> action) throws IOException
+    {
+        sync();
+        long base;
+        synchronized (lock)
+        {
+            if (from < 0 || from > length)
+                from = 0;
+            base = baseLength;
+        }
+
+        long count = 0;
+        if (from < base)
+            count += scan(basePath, FILE_HEADER + from, action)[1];
+        return count + scan(path, FILE_HEADER + Math.max(0, from - base), action)[1];
+    }
+
+    /**
+     * Adds an entry to the log. The record is written and synced by the
+     * writer thread in a later group; use awaitDurable to wait for it.
+     *
+     * @param entry The entry to log
+     * @return The sequence number of the record
+     * @throws IOException If an earlier write failed or the log is closed
+     */
+    public long append(Entry entry) throws IOException
+    {
+        byte[] term = entry.term.getBytes(StandardCharsets.UTF_8);
+        int statements = entry.statementCount();
+        byte[][] trees = new byte[statements][];
+        int length = 4 + term.length + 4;
+        for (int i = 0; i < statements; i++)
+        {
+            trees[i] = entry.treeAt(i).getBytes(StandardCharsets.UTF_8);
+            length += 4 + trees[i].length + 8;
+        }
+
+        synchronized (lock)
+        {
+            while (pending.position() > MAX_PENDING && failure == null && !closed)
+                waitOnLock();
+            check();
+
+            ensureCapacity(RECORD_HEADER + length);
+            int start = pending.position();
+            pending.putInt(length);
+            pending.putInt(0);
+            pending.putInt(term.length).put(term);
+            pending.putInt(statements);
+            for (int i = 0; i < statements; i++)
+                pending.putInt(trees[i].length).put(trees[i]).putDouble(entry.confidenceAt(i));
+
+            CRC32 crc = new CRC32();
+            crc.update(pending.array(), start + RECORD_HEADER, length);
+            pending.putInt(start + 4, (int) crc.getValue());
+
+            records++;
+            this.length += RECORD_HEADER + length;
+            lock.notifyAll();
+            return ++appended;
+        }
+    }
+
+    /**
+     * Waits until the record with the given sequence number is on disk.
+     *
+     * @param sequence The sequence number returned by append
+     * @throws IOException If the record could not be written
+     */
+    public void awaitDurable(long sequence) throws IOException
+    {
+        synchronized (lock)
+        {
+            while (durable < sequence && failure == null)
+                waitOnLock();
+            if (durable < sequence)
+                throw failure;
+        }
+    }
+
+    /**
+     * Waits until every record appended so far is on disk.
+     *
+     * @throws IOException If a record could not be written
+     */
+    public void sync() throws IOException
+    {
+        long sequence;
+        synchronized (lock)
+        {
+            sequence = appended;
+        }
+        awaitDurable(sequence);
+    }
+
+    /**
+     * Moves every record into the base and empties the log, once every
+     * record appended so far is on disk. Appends wait until it is done.
+     * Lengths read before stay valid, so replaying from one still replays
+     * exactly the records appended after it.
+     *
+     * @throws IOException If the base cannot be written or the log emptied
+     */
+    public void compact() throws IOException
+    {
+        synchronized (lock)
+        {
+            while (durable < appended && failure == null)
+                waitOnLock();
+            check();
+
+            long logged = length - baseLength;
+            if (logged == 0)
+                return;
+
+            Path temp = Paths.get(basePath + ".tmp");
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+            {
+                out.write(header(BASE_MAGIC, generation));
+                if (baseLength > 0)
+                {
+                    try (FileChannel base = FileChannel.open(basePath, StandardOpenOption.READ))
+                    {
+                        copy(base, FILE_HEADER, baseLength, out);
+                    }
+                }
+                copy(channel, FILE_HEADER, logged, out);
+                out.force(true);
+            }
+            Files.move(temp, basePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            reset(generation + 1);
+            baseLength = length;
+        }
+    }
+
+    /**
+     * Gets the number of records in the log and its base, including records
+     * not yet on disk.
+     *
+     * @return The number of records
+     */
+    public long records()
+    {
+        synchronized (lock)
+        {
+            return records;
+        }
+    }
+
+    /**
+     * Gets the length of the records in the log and its base in bytes,
+     * including records not yet on disk. Once those records are durable,
+     * replaying from this length replays only records appended after it was
+     * read.
+     *
+     * @return The length of the log
+     */
+    public long length()
+    {
+        synchronized (lock)
+        {
+            return length;
+        }
+    }
+
+    /**
+     * Gets the number of group commits (fsyncs) made since the log was opened.
+     *
+     * @return The number of commits
+     */
+    public long commits()
+    {
+        synchronized (lock)
+        {
+            return commits;
+        }
+    }
+
+    /**
+     * Writes any pending records, stops the writer thread and closes the file.
+     *
+     * @throws IOException If pending records could not be written
+     */
+    @Override
+    public void close() throws IOException
+    {
+        synchronized (lock)
+        {
+            if (closed)
+                return;
+            closed = true;
+            lock.notifyAll();
+        }
+
+        try
+        {
+            writer.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+
+        synchronized (lock)
+        {
+            if (failure != null)
+                throw failure;
+        }
+    }
+
+    /**
+     * Runs the writer thread, recording a write failure so that waiting and
+     * later callers see it.
+     */
+    private void writeLoop()
+    {
+        try
+        {
+            writeGroups();
+        }
+        catch (IOException e)
+        {
+            synchronized (lock)
+            {
+                failure = e;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Writes pending records in groups, one fsync per group, until the log
+     * is closed and nothing is left to write.
+     *
+     * @throws IOException If a group cannot be written
+     */
+    private void writeGroups() throws IOException
+    {
+        while (true)
+        {
+            ByteBuffer group;
+            long sequence;
+            synchronized (lock)
+            {
+                while (pending.position() == 0 && !closed)
+                    waitOnLock();
+                if (pending.position() == 0)
+                    return;
+
+                if (commitDelayNanos > 0 && !closed)
+                {
+                    long deadline = System.nanoTime() + commitDelayNanos;
+                    long left;
+                    while ((left = deadline - System.nanoTime()) > 0 && !closed)
+                        waitOnLock(left);
+                }
+
+                group = pending;
+                pending = spare;
+                spare = group;
+                sequence = appended;
+                lock.notifyAll();
+            }
+
+            group.flip();
+            while (group.hasRemaining())
+                channel.write(group);
+            channel.force(false);
+            group.clear();
+
+            synchronized (lock)
+            {
+                durable = sequence;
+                commits++;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Empties the log and starts a new generation.
+     *
+     * @param generation The generation of the emptied log
+     * @throws IOException If the log cannot be written
+     */
+    private void reset(long generation) throws IOException
+    {
+        channel.truncate(0);
+        channel.write(header(LOG_MAGIC, generation), 0);
+        channel.force(true);
+        channel.position(FILE_HEADER);
+        this.generation = generation;
+    }
+
+    /**
+     * Builds a file header.
+     *
+     * @param magic The magic number of the kind of file
+     * @param generation The generation to record
+     * @return The header, ready to write
+     */
+    private static ByteBuffer header(int magic, long generation)
+    {
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER);
+        header.putInt(magic).putInt(VERSION).putLong(generation);
+        return header.flip();
+    }
+
+    /**
+     * Reads and checks a file header.
+     *
+     * @param file The open file
+     * @param magic The magic number the file must have
+     * @param path The path of the file, for messages
+     * @return The generation in the header
+     * @throws IOException If the header cannot be read or is not valid
+     */
+    private static long readHeader(FileChannel file, int magic, Path path) throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER);
+        while (header.hasRemaining())
+        {
+            if (file.read(header, header.position()) < 0)
+                throw new IOException("Log header is incomplete: " + path);
+        }
+        header.flip();
+        if (header.getInt() != magic)
+            throw new IOException("Not a write-ahead log: " + path);
+        int version = header.getInt();
+        if (version != VERSION)
+            throw new IOException("Unsupported log version " + version + ": " + path);
+        return header.getLong();
+    }
+
+    /**
+     * Copies a byte range of one file to the end of another.
+     *
+     * @param from The file to copy from
+     * @param position The offset of the first byte to copy
+     * @param count The number of bytes to copy
+     * @param to The file to copy to, positioned where the bytes go
+     * @throws IOException If the bytes cannot be copied
+     */
+    private static void copy(FileChannel from, long position, long count, FileChannel to) throws IOException
+    {
+        for (long done = 0; done < count; )
+            done += from.transferTo(position + done, count - done, to);
+    }
+
+    /**
+     * Reads the records in a file from an offset up to the first incomplete
+     * or corrupt one.
+     *
+     * @param file The log or the base
+     * @param from The offset of the first record to read
+     * @param action The action to perform on each record, or null to only check them
+     * @return A pair {offset just past the last valid record, number of valid records}
+     * @throws IOException If the file cannot be read
+     */
+    private static long[] scan(Path file, long from, Consumer<? super Entry> action) throws IOException
+    {
+        long offset = from;
+        long count = 0;
+
+        try (InputStream stream = Files.newInputStream(file);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(stream, 1 << 16)))
+        {
+            in.skipNBytes(from);
+            byte[] payload = new byte[256];
+            CRC32 crc = new CRC32();
+            while (true)
+            {
+                int length;
+                int checksum;
+                try
+                {
+                    length = in.readInt();
+                    checksum = in.readInt();
+                    if (length < 20 || length > MAX_RECORD)
+                        break;
+                    if (length > payload.length)
+                        payload = new byte[length];
+                    in.readFully(payload, 0, length);
+                }
+                catch (EOFException e)
+                {
+                    break;
+                }
+
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != checksum)
+                    break;
+
+                if (action != null)
+                    action.accept(decode(ByteBuffer.wrap(payload, 0, length)));
+                offset += RECORD_HEADER + length;
+                count++;
+            }
+        }
+
+        return new long[] {offset, count};
+    }
+
+    /**
+     * Decodes the payload of a record.
+     *
+     * @param buf The payload
+     * @return The logged entry
+     */
+    private static Entry decode(ByteBuffer buf)
+    {
+        String term = string(buf);
+        int statements = buf.getInt();
+        String[] trees = new String[statements];
+        double[] confidences = new double[statements];
+        for (int i = 0; i < statements; i++)
+        {
+            trees[i] = string(buf);
+            confidences[i] = buf.getDouble();
+        }
+
+        Entry entry = new Entry(term, trees[0], confidences[0]);
+        if (statements > 1)
+            entry.statements = new StatementList(trees, confidences);
+        return entry;
+    }
+
+    /**
+     * Decodes a length-prefixed UTF-8 string.
+     *
+     * @param buf The payload, positioned at the string
+     * @return The string
+     */
+    private static String string(ByteBuffer buf)
+    {
+        byte[] bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Makes room in the pending buffer for a record.
+     *
+     * @param bytes The number of bytes needed
+     */
+    private void ensureCapacity(int bytes)
+    {
+        if (pending.remaining() >= bytes)
+            return;
+
+        int capacity = Math.max(pending.capacity() * 2, pending.position() + bytes);
+        ByteBuffer grown = ByteBuffer.allocate(capacity);
+        pending.flip();
+        grown.put(pending);
+        pending = grown;
+    }
+
+    /**
+     * Throws if the log can no longer accept records.
+     *
+     * @throws IOException If an earlier write failed or the log is closed
+     */
+    private void check() throws IOException
+    {
+        if (failure != null)
+            throw failure;
+        if (closed)
+            throw new IOException("Log is closed: " + path);
+    }
+
+    /**
+     * Waits on the lock until notified.
+     *
+     * @throws InterruptedIOException If the thread is interrupted
+     */
+    private void waitOnLock() throws InterruptedIOException
+    {
+        waitOnLock(0);
+    }
+
+    /**
+     * Waits on the lock until notified or the timeout passes.
+     *
+     * @param nanos The longest time to wait, or 0 to wait until notified
+     * @throws InterruptedIOException If the thread is interrupted
+     */
+    private void waitOnLock(long nanos) throws InterruptedIOException
+    {
+        try
+        {
+            if (nanos > 0)
+                lock.wait(nanos / 1_000_000, (int) (nanos % 1_000_000));
+            else
+                lock.wait();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the log: " + path);
+        }
+    }
+}
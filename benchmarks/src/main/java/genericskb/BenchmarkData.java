@@ -0,0 +1,138 @@
+package genericskb;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Supplies data for the benchmarks. Entries come from the real knowledge
+ * base when it is present (set -Dkb.file to point at it), and otherwise from
+ * a seeded generator that produces GenericsKB-shaped lines, so results are
+ * reproducible on any machine.
+ */
+final class BenchmarkData
+{
+    static final String KB_FILE = System.getProperty("kb.file", "GenericsKB.txt");
+
+    private static final String[] WORDS = {
+            "bird", "animal", "tree", "water", "fish", "plant", "rock", "cell", "insect", "mammal",
+            "flower", "river", "metal", "acid", "star", "virus", "leaf", "reptile", "cloud", "seed" };
+
+    private static List<Entry> cached;
+
+    private BenchmarkData()
+    {
+    }
+
+    /**
+     * Returns the first n entries of the knowledge base, or n synthetic
+     * entries if the file is not available.
+     *
+     * @param n The number of entries wanted
+     * @return The entries, in file order
+     * @throws IOException If the knowledge base exists but cannot be read
+     */
+    static synchronized List<Entry> entries(int n) throws IOException
+    {
+        if (cached == null || cached.size() < n)
+        {
+            if (Files.isRegularFile(Paths.get(KB_FILE)))
+                cached = KBFileReader.readEntries(KB_FILE);
+            if (cached == null || cached.size() < n)
+                cached = synthetic(n, 42);
+        }
+        return cached.subList(0, n);
+    }
+
+    /**
+     * Generates GenericsKB-shaped entries: a term, a short generic statement
+     * and a confidence between 0 and 1.
+     *
+     * @param n The number of entries to generate
+     * @param seed The random seed
+     * @return The generated entries
+     */
+    static List<Entry> synthetic(int n, long seed)
+    {
+        Random random = new Random(seed);
+        List<Entry> entries = new ArrayList<>(n);
+        for (int i = 0; i < n; i++)
+        {
+            String term = WORDS[random.nextInt(WORDS.length)] + " " + Integer.toString(i, 36);
+            String tree = term + " " + WORDS[random.nextInt(WORDS.length)] + "s are "
+                    + WORDS[random.nextInt(WORDS.length)] + "-like.";
+            entries.add(new Entry(term, tree, Math.round(random.nextDouble() * 1e4) / 1e4));
+        }
+        return entries;
+    }
+
+    /**
+     * Builds a shuffled query list with the given share of terms that are in
+     * the entries and the rest guaranteed misses.
+     *
+     * @param entries The entries that will be in the tree
+     * @param count The number of queries
+     * @param hitPercent The percentage of queries that should be found
+     * @param seed The random seed
+     * @return The query terms
+     */
+    static List<String> queries(List<Entry> entries, int count, int hitPercent, long seed)
+    {
+        Random random = new Random(seed);
+        List<String> queries = new ArrayList<>(count);
+        int hits = count * hitPercent / 100;
+        for (int i = 0; i < count; i++)
+        {
+            if (i < hits)
+                queries.add(entries.get(random.nextInt(entries.size())).term);
+            else
+                queries.add("missing " + Integer.toString(random.nextInt(Integer.MAX_VALUE), 36));
+        }
+        Collections.shuffle(queries, random);
+        return queries;
+    }
+
+    /**
+     * Writes entries to a temporary tab-separated file.
+     *
+     * @param entries The entries to write
+     * @return The path of the file, deleted when the JVM exits
+     * @throws IOException If the file cannot be written
+     */
+    static Path writeKB(List<Entry> entries) throws IOException
+    {
+        Path file = Files.createTempFile("kb", ".txt");
+        file.toFile().deleteOnExit();
+        try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8))
+        {
+            for (Entry e : entries)
+            {
+                out.write(e.term + "\t" + e.tree + "\t" + e.confidence);
+                out.newLine();
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Writes query terms to a temporary file, one per line.
+     *
+     * @param queries The terms to write
+     * @return The path of the file, deleted when the JVM exits
+     * @throws IOException If the file cannot be written
+     */
+    static Path writeQueries(List<String> queries) throws IOException
+    {
+        Path file = Files.createTempFile("queries", ".txt");
+        file.toFile().deleteOnExit();
+        Files.write(file, queries, StandardCharsets.UTF_8);
+        return file;
+    }
+}
@@ -0,0 +1,68 @@
+package genericskb;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures a single find against a tree of each size, with a configurable
+ * mix of hits and misses. Queries are cycled through so the branch
+ * predictor cannot learn a single path.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FindBenchmark
+{
+    private static final int QUERY_COUNT = 4096;
+
+    // Same sizes as PerformanceTest.DATASET_SIZES
+    @Param({"5", "25", "50", "250", "500", "1500", "3500", "5000", "7500", "50000"})
+    public int size;
+
+    @Param({"100", "50", "0"})
+    public int hitPercent;
+
+    // False-positive rate of the term filter, or 0 for no filter
+    @Param({"0", "0.01"})
+    public double filterRate;
+
+    private AVLTreeDatabase<Entry> database;
+    private String[] queries;
+    private int next;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        List<Entry> entries = BenchmarkData.entries(size);
+        database = new AVLTreeDatabase<>(null);
+        for (Entry entry : entries)
+            database.insert(entry);
+        if (filterRate > 0)
+            database.enableTermFilter(filterRate);
+        queries = BenchmarkData.queries(entries, QUERY_COUNT, hitPercent, 7).toArray(new String[0]);
+    }
+
+    @Benchmark
+    public Entry find()
+    {
+        String term = queries[next];
+        next = (next + 1) & (QUERY_COUNT - 1);
+        return database.find(term);
+    }
+}
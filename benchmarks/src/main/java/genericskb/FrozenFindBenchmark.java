@@ -0,0 +1,77 @@
+package genericskb;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares find on a loaded tree with find on its frozen copy. The tree is
+ * built in file order, as readFile builds it, so its nodes are scattered
+ * over the heap the way they are in use. Queries are cycled through as in
+ * FindBenchmark.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrozenFindBenchmark
+{
+    private static final int QUERY_COUNT = 4096;
+
+    @Param({"5000", "50000", "500000"})
+    public int size;
+
+    @Param({"100", "50"})
+    public int hitPercent;
+
+    private AVLTreeDatabase<Entry> database;
+    private FrozenAVLTreeDatabase frozen;
+    private String[] queries;
+    private int next;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        List<Entry> entries = BenchmarkData.entries(size);
+        database = new AVLTreeDatabase<>(null);
+        for (Entry entry : entries)
+            database.insert(entry);
+        frozen = database.freeze();
+
+        // Copies, so hits cannot be decided by reference equality
+        List<String> terms = BenchmarkData.queries(entries, QUERY_COUNT, hitPercent, 7);
+        queries = new String[QUERY_COUNT];
+        for (int i = 0; i < QUERY_COUNT; i++)
+            queries[i] = new String(terms.get(i));
+    }
+
+    @Benchmark
+    public Entry tree()
+    {
+        String term = queries[next];
+        next = (next + 1) & (QUERY_COUNT - 1);
+        return database.find(term);
+    }
+
+    @Benchmark
+    public Entry frozen()
+    {
+        String term = queries[next];
+        next = (next + 1) & (QUERY_COUNT - 1);
+        return frozen.find(term);
+    }
+}
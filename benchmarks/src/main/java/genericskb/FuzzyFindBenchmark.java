@@ -0,0 +1,85 @@
+package genericskb;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures findClosest on misspelt terms: real terms with one or two random
+ * characters substituted, deleted or inserted.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FuzzyFindBenchmark
+{
+    private static final int QUERY_COUNT = 1024;
+
+    @Param({"5000", "50000"})
+    public int size;
+
+    @Param({"1", "2"})
+    public int maxDistance;
+
+    private AVLTreeDatabase<Entry> database;
+    private String[] queries;
+    private int next;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        List<Entry> entries = BenchmarkData.entries(size);
+        database = new AVLTreeDatabase<>(null);
+        for (Entry entry : entries)
+            database.insert(entry);
+        database.enableFuzzyIndex();
+
+        Random random = new Random(13);
+        queries = new String[QUERY_COUNT];
+        for (int i = 0; i < QUERY_COUNT; i++)
+        {
+            StringBuilder term = new StringBuilder(entries.get(random.nextInt(size)).term);
+            for (int edit = 0; edit < maxDistance && term.length() > 1; edit++)
+            {
+                int at = random.nextInt(term.length());
+                char c = (char) ('a' + random.nextInt(26));
+                switch (random.nextInt(3))
+                {
+                    case 0:
+                        term.setCharAt(at, c);
+                        break;
+                    case 1:
+                        term.deleteCharAt(at);
+                        break;
+                    default:
+                        term.insert(at, c);
+                }
+            }
+            queries[i] = term.toString();
+        }
+    }
+
+    @Benchmark
+    public List<Entry> findClosest()
+    {
+        String term = queries[next];
+        next = (next + 1) & (QUERY_COUNT - 1);
+        return database.findClosest(term, maxDistance, 5);
+    }
+}
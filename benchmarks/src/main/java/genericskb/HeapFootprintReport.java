@@ -0,0 +1,86 @@
+package genericskb;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.ref.Reference;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Reports the heap retained by a fully loaded tree, with and without string
+ * pooling, for each duplicate policy. Retained heap is the used heap after a
+ * full collection with the tree loaded, minus the used heap before loading.
+ * Results are printed and written to heap-footprint.csv.
+ *
+ * Uses the file named by -Dkb.file when it exists, otherwise a synthetic
+ * file of the size given as the first argument (default 50000).
+ */
+public class HeapFootprintReport
+{
+    public static void main(String[] args) throws IOException
+    {
+        String file = BenchmarkData.KB_FILE;
+        if (!Files.isRegularFile(Paths.get(file)))
+        {
+            int size = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+            file = BenchmarkData.writeKB(BenchmarkData.synthetic(size, 42)).toString();
+        }
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.out.printf("%-24s %-8s %10s %14s %12s %10s%n",
+                "policy", "pooling", "entries", "retained (KB)", "bytes/entry", "load (ms)");
+
+        try (PrintWriter csv = new PrintWriter(Files.newBufferedWriter(Paths.get("heap-footprint.csv"))))
+        {
+            csv.println("policy,pooling,entries,retainedBytes,bytesPerEntry,loadMillis");
+            for (DuplicatePolicy policy : DuplicatePolicy.values())
+            {
+                for (boolean pooling : new boolean[] {false, true})
+                {
+                    long before = usedAfterGC(memory);
+
+                    long start = System.nanoTime();
+                    AVLTreeDatabase<Entry> database = new AVLTreeDatabase<>(file);
+                    database.setDuplicatePolicy(policy);
+                    database.setStringPooling(pooling);
+                    database.readFileBulk();
+                    long loadMillis = (System.nanoTime() - start) / 1_000_000;
+
+                    long retained = usedAfterGC(memory) - before;
+                    int entries = database.size();
+                    long perEntry = entries == 0 ? 0 : retained / entries;
+
+                    System.out.printf("%-24s %-8s %10d %14d %12d %10d%n",
+                            policy, pooling, entries, retained / 1024, perEntry, loadMillis);
+                    csv.println(policy + "," + pooling + "," + entries + "," + retained + ","
+                            + perEntry + "," + loadMillis);
+
+                    // Keep the tree reachable until it has been measured
+                    Reference.reachabilityFence(database);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs full collections until the used heap settles and returns it.
+     *
+     * @param memory The memory bean
+     * @return The used heap in bytes
+     */
+    private static long usedAfterGC(MemoryMXBean memory)
+    {
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 10; i++)
+        {
+            System.gc();
+            long now = memory.getHeapMemoryUsage().getUsed();
+            if (now >= used)
+                break;
+            used = now;
+        }
+        return used;
+    }
+}
@@ -0,0 +1,51 @@
+package genericskb;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures building a tree by inserting already-parsed entries one at a
+ * time, so parsing cost is excluded. Divide by size for time per insert.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InsertBenchmark
+{
+    // Same sizes as PerformanceTest.DATASET_SIZES
+    @Param({"5", "25", "50", "250", "500", "1500", "3500", "5000", "7500", "50000"})
+    public int size;
+
+    private List<Entry> entries;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        entries = BenchmarkData.entries(size);
+    }
+
+    @Benchmark
+    public AVLTreeDatabase<Entry> insert()
+    {
+        AVLTreeDatabase<Entry> database = new AVLTreeDatabase<>(null);
+        for (Entry entry : entries)
+            database.insert(entry);
+        return database;
+    }
+}
@@ -0,0 +1,105 @@
+package genericskb;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares finding rows by a numeric id in a KeyedAVLTree with boxed Integer
+ * keys and in an IntKeyedAVLTree. The boxed tree reads a copy of the id that
+ * each row holds already boxed, so the comparison is not charged for boxing
+ * every key it reads. Rows are inserted in a random order, and half of the
+ * queried ids are present.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyedFindBenchmark
+{
+    private static final int QUERY_COUNT = 4096;
+
+    @Param({"5000", "50000", "500000"})
+    public int size;
+
+    private KeyedAVLTree<Integer, Row> boxed;
+    private IntKeyedAVLTree<Row> primitive;
+    private int[] queries;
+    private int next;
+
+    /**
+     * A row of a numeric-id data set.
+     */
+    static final class Row
+    {
+        final int id;
+        final Integer boxedId;
+        final String name;
+
+        Row(int id, String name)
+        {
+            this.id = id;
+            this.boxedId = id;
+            this.name = name;
+        }
+    }
+
+    @Setup
+    public void setup()
+    {
+        Random random = new Random(17);
+        int[] ids = new int[size];
+        for (int i = 0; i < size; i++)
+            ids[i] = 2 * i;
+        for (int i = size - 1; i > 0; i--)
+        {
+            int j = random.nextInt(i + 1);
+            int t = ids[i];
+            ids[i] = ids[j];
+            ids[j] = t;
+        }
+
+        boxed = KeyedAVLTree.naturalOrder(row -> row.boxedId);
+        primitive = new IntKeyedAVLTree<>(row -> row.id);
+        for (int id : ids)
+        {
+            Row row = new Row(id, "row " + id);
+            boxed.insert(row);
+            primitive.insert(row);
+        }
+
+        // Even ids are present, odd ones are not
+        queries = new int[QUERY_COUNT];
+        for (int i = 0; i < QUERY_COUNT; i++)
+            queries[i] = random.nextInt(2 * size);
+    }
+
+    @Benchmark
+    public Row boxed()
+    {
+        int id = queries[next];
+        next = (next + 1) & (QUERY_COUNT - 1);
+        return boxed.find(id);
+    }
+
+    @Benchmark
+    public Row primitive()
+    {
+        int id = queries[next];
+        next = (next + 1) & (QUERY_COUNT - 1);
+        return primitive.find(id);
+    }
+}
@@ -0,0 +1,57 @@
+package genericskb;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures loading a knowledge base file of each size into a new tree, for
+ * both the line-by-line and the bulk loader.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoadBenchmark
+{
+    // Same sizes as PerformanceTest.DATASET_SIZES
+    @Param({"5", "25", "50", "250", "500", "1500", "3500", "5000", "7500", "50000"})
+    public int size;
+
+    private String file;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        file = BenchmarkData.writeKB(BenchmarkData.entries(size)).toString();
+    }
+
+    @Benchmark
+    public AVLTreeDatabase<Entry> readFile()
+    {
+        AVLTreeDatabase<Entry> database = new AVLTreeDatabase<>(file);
+        database.readFile();
+        return database;
+    }
+
+    @Benchmark
+    public AVLTreeDatabase<Entry> readFileBulk()
+    {
+        AVLTreeDatabase<Entry> database = new AVLTreeDatabase<>(file);
+        database.readFileBulk();
+        return database;
+    }
+}
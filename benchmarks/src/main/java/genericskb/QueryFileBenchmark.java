@@ -0,0 +1,84 @@
+package genericskb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the Main "query terms from a file" path: reading a query file
+ * and resolving every term against a loaded tree, one term at a time and
+ * with the batch APIs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryFileBenchmark
+{
+    private static final int QUERY_COUNT = 10000;
+
+    // Same sizes as PerformanceTest.DATASET_SIZES
+    @Param({"5", "25", "50", "250", "500", "1500", "3500", "5000", "7500", "50000"})
+    public int size;
+
+    @Param({"100", "50", "0"})
+    public int hitPercent;
+
+    private AVLTreeDatabase<Entry> database;
+    private String queryFile;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        List<Entry> entries = BenchmarkData.entries(size);
+        database = new AVLTreeDatabase<>(null);
+        for (Entry entry : entries)
+            database.insert(entry);
+        queryFile = BenchmarkData.writeQueries(BenchmarkData.queries(entries, QUERY_COUNT, hitPercent, 11)).toString();
+    }
+
+    @Benchmark
+    public int findEach() throws IOException
+    {
+        int[] found = {0};
+        KBFileReader.forEachLine(queryFile, term -> {
+            if (database.find(term) != null)
+                found[0]++;
+        });
+        return found[0];
+    }
+
+    @Benchmark
+    public Entry[] findAll() throws IOException
+    {
+        return database.findAll(readQueries());
+    }
+
+    @Benchmark
+    public Entry[] findAllSorted() throws IOException
+    {
+        return database.findAllSorted(readQueries());
+    }
+
+    private List<String> readQueries() throws IOException
+    {
+        List<String> terms = new ArrayList<>(QUERY_COUNT);
+        KBFileReader.forEachLine(queryFile, terms::add);
+        return terms;
+    }
+}
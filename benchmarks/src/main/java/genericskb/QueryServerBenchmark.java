@@ -0,0 +1,121 @@
+package genericskb;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures lookups through QueryServer on localhost. Each operation sends a
+ * pipelined burst of terms on one connection and reads every reply, so the
+ * score is the round trip for the whole burst. Run with -t to add clients.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(1)
+public class QueryServerBenchmark
+{
+    private static final int DATASET_SIZE = 50000;
+
+    /**
+     * The server and the request bytes, shared by every client thread.
+     */
+    @State(Scope.Benchmark)
+    public static class Server
+    {
+        @Param({"1", "100", "1000"})
+        public int pipelineDepth;
+
+        QueryServer server;
+        int port;
+        byte[] request;
+
+        @Setup
+        public void setup() throws IOException
+        {
+            List<Entry> entries = BenchmarkData.entries(DATASET_SIZE);
+            AVLTreeDatabase<Entry> database = new AVLTreeDatabase<>(null);
+            for (Entry entry : entries)
+                database.insert(entry);
+
+            StringBuilder lines = new StringBuilder();
+            for (String term : BenchmarkData.queries(entries, pipelineDepth, 50, 11))
+                lines.append(term).append('\n');
+            request = lines.toString().getBytes(StandardCharsets.UTF_8);
+
+            server = new QueryServer(database, 0);
+            port = server.getPort();
+            server.start();
+        }
+
+        @TearDown
+        public void tearDown() throws IOException
+        {
+            server.close();
+        }
+    }
+
+    /**
+     * One client connection per benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class Client
+    {
+        Socket socket;
+        OutputStream out;
+        BufferedReader in;
+
+        @Setup(Level.Trial)
+        public void connect(Server server) throws IOException
+        {
+            socket = new Socket(InetAddress.getLoopbackAddress(), server.port);
+            socket.setTcpNoDelay(true);
+            out = socket.getOutputStream();
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        }
+
+        @TearDown(Level.Trial)
+        public void disconnect() throws IOException
+        {
+            socket.close();
+        }
+    }
+
+    @Benchmark
+    public int pipelinedBurst(Server server, Client client) throws IOException
+    {
+        client.out.write(server.request);
+        client.out.flush();
+
+        int found = 0;
+        for (int i = 0; i < server.pipelineDepth; i++)
+        {
+            if (client.in.readLine().startsWith("FOUND"))
+                found++;
+        }
+        return found;
+    }
+}
@@ -0,0 +1,133 @@
+package genericskb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures find on each node storage: BTNode objects (AVLTreeDatabase),
+ * parallel arrays (ArrayAVLTreeDatabase) and memory-mapped scratch files
+ * (OffHeapAVLTreeDatabase).
+ *
+ * Before anything is measured, setup builds all three from the same entries,
+ * plus terms mixing BMP and supplementary characters, and checks that every
+ * query returns the same entry and that both comparison counts agree with
+ * AVLTreeDatabase. The counts only agree if every backend orders terms as
+ * String.compareTo does, so a backend that returns the right entries from a
+ * differently shaped tree is caught as well.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StorageFindBenchmark
+{
+    private static final int QUERY_COUNT = 4096;
+    private static final String[] UNICODE_PARTS = {
+            "a", "\u00E9", "\u4E2D", "\uD7FF", "\uE000", "\uFF21", "\uD83D\uDE00", "\uD801\uDC37" };
+
+    @Param({"500", "50000"})
+    public int size;
+
+    @Param({"objects", "arrays", "offheap"})
+    public String storage;
+
+    private AVLTreeDatabase<Entry> objects;
+    private ArrayAVLTreeDatabase arrays;
+    private OffHeapAVLTreeDatabase offHeap;
+    private String[] queries;
+    private int next;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        List<Entry> entries = new ArrayList<>(BenchmarkData.entries(size));
+        for (int i = 0; i < UNICODE_PARTS.length * UNICODE_PARTS.length; i++)
+        {
+            String term = UNICODE_PARTS[i / UNICODE_PARTS.length] + UNICODE_PARTS[i % UNICODE_PARTS.length];
+            entries.add(new Entry(term, term + " is a term.", 0.5));
+        }
+
+        objects = new AVLTreeDatabase<>(null);
+        arrays = new ArrayAVLTreeDatabase(null);
+        offHeap = new OffHeapAVLTreeDatabase(null);
+        for (Entry entry : entries)
+        {
+            objects.insert(entry);
+            arrays.insert(entry);
+            offHeap.insert(entry);
+        }
+        queries = BenchmarkData.queries(entries, QUERY_COUNT, 50, 7).toArray(new String[0]);
+
+        for (String term : queries)
+        {
+            String expected = String.valueOf(objects.find(term));
+            if (!expected.equals(String.valueOf(arrays.find(term))))
+                throw new IllegalStateException("ArrayAVLTreeDatabase disagrees on " + term);
+            if (!expected.equals(String.valueOf(offHeap.find(term))))
+                throw new IllegalStateException("OffHeapAVLTreeDatabase disagrees on " + term);
+        }
+        checkCounts("ArrayAVLTreeDatabase", arrays.getInsertComparisons(), arrays.getSearchComparisons());
+        checkCounts("OffHeapAVLTreeDatabase", offHeap.getInsertComparisons(), offHeap.getSearchComparisons());
+
+        if (!storage.equals("offheap"))
+        {
+            offHeap.close();
+            offHeap = null;
+        }
+    }
+
+    /**
+     * Checks that a backend made as many comparisons as AVLTreeDatabase.
+     *
+     * @param name The name of the backend
+     * @param inserts Its insert comparison count
+     * @param searches Its search comparison count
+     */
+    private void checkCounts(String name, long inserts, long searches)
+    {
+        if (inserts != objects.getInsertComparisons() || searches != objects.getSearchComparisons())
+            throw new IllegalStateException(name + " made " + inserts + " insert and " + searches
+                    + " search comparisons, AVLTreeDatabase " + objects.getInsertComparisons() + " and "
+                    + objects.getSearchComparisons());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        if (offHeap != null)
+            offHeap.close();
+    }
+
+    @Benchmark
+    public Entry find()
+    {
+        String term = queries[next];
+        next = (next + 1) & (QUERY_COUNT - 1);
+        switch (storage)
+        {
+            case "arrays":
+                return arrays.find(term);
+            case "offheap":
+                return offHeap.find(term);
+            default:
+                return objects.find(term);
+        }
+    }
+}